@@ -0,0 +1,591 @@
+package com.billialpha.discord.transfer.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import discord4j.common.JacksonResources;
+import discord4j.common.util.Snowflake;
+import discord4j.discordjson.Id;
+import discord4j.discordjson.json.AttachmentData;
+import discord4j.discordjson.json.ChannelData;
+import discord4j.discordjson.json.EmojiData;
+import discord4j.discordjson.json.GatewayData;
+import discord4j.discordjson.json.GuildUpdateData;
+import discord4j.discordjson.json.ImmutableChannelData;
+import discord4j.discordjson.json.ImmutableMessageData;
+import discord4j.discordjson.json.MessageData;
+import discord4j.discordjson.json.ReactionData;
+import discord4j.discordjson.json.SessionStartLimitData;
+import discord4j.discordjson.json.UserData;
+import discord4j.discordjson.json.WebhookData;
+import discord4j.discordjson.possible.Possible;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.http.server.HttpServerRoutes;
+import reactor.netty.http.websocket.WebsocketInbound;
+import reactor.netty.http.websocket.WebsocketOutbound;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/**
+ * An in-process stand-in for the Discord API: REST endpoints, gateway and attachment CDN.
+ * <p>
+ *     Only the endpoints used by the migration are served, with synthetic guilds seeded through
+ *     {@link #createGuild(String)} and {@link #createTextChannel(long, long, String, int, int, int)}.
+ *     Every route is rate-limited per major parameter like Discord does: responses carry the
+ *     {@code X-RateLimit-*} headers and requests over budget get a 429.
+ * </p>
+ */
+public class FakeDiscord implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeDiscord.class);
+    private static final String API = "/api/v10";
+    private static final int PAGE_SIZE = 100;
+    private static final long BOT_ID = 1000;
+
+    private final ObjectMapper mapper = JacksonResources.create().getObjectMapper();
+    private final int bucketSize;
+    private final long bucketWindowMs;
+    private final DisposableServer server;
+    private final AtomicLong ids = new AtomicLong(Snowflake.of(Instant.now()).asLong());
+    private final Map<Long, FakeGuild> guilds = new ConcurrentHashMap<>();
+    private final Map<Long, FakeChannel> channels = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder attachmentBytes = new LongAdder();
+
+    /**
+     * Start the fake API on a random local port.
+     * @param bucketSize The number of requests allowed per rate-limit bucket and window.
+     * @param bucketWindowMs The duration of a rate-limit window, in milliseconds.
+     */
+    public FakeDiscord(int bucketSize, long bucketWindowMs) {
+        this.bucketSize = bucketSize;
+        this.bucketWindowMs = bucketWindowMs;
+        this.server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .route(this::routes)
+                .bindNow();
+        LOGGER.info("Fake Discord API listening on "+getApiUrl());
+    }
+
+    public String getApiUrl() {
+        return "http://127.0.0.1:"+server.port()+API;
+    }
+
+    /**
+     * @return A bot token accepted by Discord4J, for the bot user of this API.
+     */
+    public String getToken() {
+        return Base64.getEncoder().withoutPadding().encodeToString(String.valueOf(BOT_ID).getBytes())+".bench.token";
+    }
+
+    private String getBaseUrl() {
+        return "http://127.0.0.1:"+server.port();
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    public long getAttachmentBytes() {
+        return attachmentBytes.sum();
+    }
+
+    /**
+     * @return The number of messages of a channel, seeded and posted.
+     */
+    public int getMessageCount(long channelId) {
+        return channels.get(channelId).size();
+    }
+
+    /**
+     * @return The number of messages carrying the reaction of the bot in a channel.
+     */
+    public int getReactionCount(long channelId) {
+        return channels.get(channelId).reacted.size();
+    }
+
+    /**
+     * @return The channels of a guild, categories included.
+     */
+    public List<Long> getChannels(long guildId) {
+        return channels.values().stream().filter(c -> c.guildId == guildId).map(c -> c.id).toList();
+    }
+
+    public long createGuild(String name) {
+        long id = nextId();
+        guilds.put(id, new FakeGuild(id, name));
+        return id;
+    }
+
+    public long createCategory(long guildId, String name) {
+        long id = nextId();
+        channels.put(id, new FakeChannel(id, guildId, 4, name, null, null));
+        return id;
+    }
+
+    /**
+     * Create a text channel with a synthetic history, its messages are spread over the last days.
+     * @param guildId The guild of the channel.
+     * @param categoryId The category of the channel, 0 for none.
+     * @param name The channel name.
+     * @param messages The number of messages of the channel.
+     * @param attachmentEvery Every how many messages one carries an attachment, 0 for none.
+     * @param attachmentSize The size of attachments, in bytes.
+     * @return The channel ID.
+     */
+    public long createTextChannel(long guildId, long categoryId, String name, int messages, int attachmentEvery,
+                                  int attachmentSize) {
+        // Seeded messages are older than any created entity, one second apart
+        long start = Instant.now().minusSeconds(messages + 86400L).toEpochMilli();
+        long id = Snowflake.of(Instant.ofEpochMilli(start)).asLong() + channels.size();
+        FakeChannel channel = new FakeChannel(id, guildId, 0, name, categoryId != 0 ? categoryId : null, null);
+        channel.attachmentEvery = attachmentEvery;
+        channel.attachmentSize = attachmentSize;
+        for (int i = 0; i < messages; i++) {
+            channel.append(Snowflake.of(Instant.ofEpochMilli(start + (i + 1) * 1000L)).asLong() + channels.size());
+        }
+        channel.seeded = messages;
+        channels.put(id, channel);
+        return id;
+    }
+
+    private long nextId() {
+        long now = Snowflake.of(Instant.now()).asLong();
+        return ids.updateAndGet(last -> Math.max(last + 1, now));
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+
+    private void routes(HttpServerRoutes routes) {
+        routes.get(API+"/gateway", (req, res) -> json(req, res, "gateway", "", this::gateway))
+                .get(API+"/gateway/bot", (req, res) -> json(req, res, "gateway", "", this::gateway))
+                .get(API+"/users/@me", (req, res) -> json(req, res, "users", "", () -> user(BOT_ID, "bench-bot", true)))
+                .get(API+"/guilds/{guild}", (req, res) -> json(req, res, "guild", req.param("guild"),
+                        () -> guild(guilds.get(Long.parseLong(req.param("guild"))))))
+                .get(API+"/guilds/{guild}/channels", (req, res) -> json(req, res, "guild-channels",
+                        req.param("guild"), () -> channels.values().stream()
+                                .filter(c -> c.guildId == Long.parseLong(req.param("guild")))
+                                .map(this::channel).toList()))
+                .get(API+"/guilds/{guild}/roles", (req, res) -> json(req, res, "guild-roles", req.param("guild"),
+                        List::of))
+                // No threads: listing them is all that is exercised
+                .get(API+"/guilds/{guild}/threads/active", (req, res) -> json(req, res, "guild-threads",
+                        req.param("guild"), () -> Map.of("threads", List.of(), "members", List.of())))
+                .get(API+"/channels/{channel}/threads/archived/public", (req, res) -> json(req, res,
+                        "archived-threads", req.param("channel"),
+                        () -> Map.of("threads", List.of(), "members", List.of(), "has_more", false)))
+                .post(API+"/guilds/{guild}/channels", (req, res) -> body(req, res, "guild-channels-create",
+                        req.param("guild"), body -> createChannel(Long.parseLong(req.param("guild")), body)))
+                // Channel positions, the only PATCH route used
+                .route(req -> req.method().equals(HttpMethod.PATCH) && req.fullPath().endsWith("/channels"),
+                        (req, res) -> body(req, res, "guild-channels-modify", "", body -> null))
+                .get(API+"/channels/{channel}", (req, res) -> json(req, res, "channel", req.param("channel"),
+                        () -> channel(channels.get(Long.parseLong(req.param("channel"))))))
+                .get(API+"/channels/{channel}/messages", (req, res) -> json(req, res, "messages",
+                        req.param("channel"), () -> messages(req)))
+                .post(API+"/channels/{channel}/messages", (req, res) -> body(req, res, "messages-create",
+                        req.param("channel"), body -> createMessage(Long.parseLong(req.param("channel")), null)))
+                .put(API+"/channels/{channel}/messages/{message}/reactions/{emoji}/@me", (req, res) -> json(req,
+                        res, "reactions", req.param("channel"), () -> react(req, true)))
+                .delete(API+"/channels/{channel}/messages/{message}/reactions/{emoji}/@me", (req, res) -> json(req,
+                        res, "reactions", req.param("channel"), () -> react(req, false)))
+                .get(API+"/channels/{channel}/webhooks", (req, res) -> json(req, res, "webhooks",
+                        req.param("channel"), List::of))
+                .post(API+"/channels/{channel}/webhooks", (req, res) -> body(req, res, "webhooks-create",
+                        req.param("channel"), body -> webhook(Long.parseLong(req.param("channel")))))
+                .post(API+"/webhooks/{webhook}/{token}", (req, res) -> body(req, res, "webhook-execute",
+                        req.param("webhook"), body -> createMessage(Long.parseLong(req.param("token")),
+                                Long.parseLong(req.param("webhook")))))
+                .get("/attachments/{id}/{name}", this::attachment)
+                .ws("/gateway", this::gatewaySession);
+    }
+
+    /**
+     * Answer a request with a JSON body, once it passed the rate-limit of its route.
+     */
+    private Publisher<Void> json(HttpServerRequest req, HttpServerResponse res, String route, String major,
+                                 Supplier<Object> body) {
+        return req.receive().then(Mono.defer(() -> respond(res, route, major, body)));
+    }
+
+    /**
+     * Answer a request from its body, once it passed the rate-limit of its route.
+     */
+    private Publisher<Void> body(HttpServerRequest req, HttpServerResponse res, String route, String major,
+                                 Function<String, Object> handler) {
+        return req.receive().aggregate().asString().defaultIfEmpty("")
+                .flatMap(body -> respond(res, route, major, () -> handler.apply(body)));
+    }
+
+    private Mono<Void> respond(HttpServerResponse res, String route, String major, Supplier<Object> body) {
+        requests.increment();
+        String key = route+":"+major;
+        Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket());
+        long now = System.currentTimeMillis();
+        int remaining;
+        long resetAfter;
+        synchronized (bucket) {
+            if (bucket.resetAt <= now) {
+                bucket.resetAt = now + bucketWindowMs;
+                bucket.remaining = bucketSize;
+            }
+            remaining = --bucket.remaining;
+            resetAfter = bucket.resetAt - now;
+        }
+        String resetAfterSeconds = String.valueOf(resetAfter / 1000.0);
+        res.header("X-RateLimit-Limit", String.valueOf(bucketSize))
+                .header("X-RateLimit-Remaining", String.valueOf(Math.max(0, remaining)))
+                .header("X-RateLimit-Reset-After", resetAfterSeconds)
+                .header("X-RateLimit-Bucket", route)
+                .header("Content-Type", "application/json");
+        if (remaining < 0) {
+            rateLimited.increment();
+            return res.status(HttpResponseStatus.TOO_MANY_REQUESTS)
+                    .header("Retry-After", resetAfterSeconds)
+                    .header("X-RateLimit-Scope", "user")
+                    .sendString(Mono.just("{\"message\":\"You are being rate limited.\",\"retry_after\":"
+                            +resetAfterSeconds+",\"global\":false}"))
+                    .then();
+        }
+        Object value;
+        try {
+            value = body.get();
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Fake API error on "+route, ex);
+            return res.status(HttpResponseStatus.BAD_REQUEST)
+                    .sendString(Mono.just("{\"message\":\""+ex+"\",\"code\":0}")).then();
+        }
+        if (value == null) return res.status(HttpResponseStatus.NO_CONTENT).send();
+        return res.sendByteArray(Mono.fromCallable(() -> mapper.writeValueAsBytes(value))).then();
+    }
+
+    private GatewayData gateway() {
+        return GatewayData.builder()
+                .url("ws://127.0.0.1:"+server.port()+"/gateway")
+                .shards(1)
+                .sessionStartLimit(SessionStartLimitData.builder()
+                        .total(1000).remaining(1000).resetAfter(0).maxConcurrency(1).build())
+                .build();
+    }
+
+    private UserData user(long id, String name, boolean bot) {
+        return UserData.builder()
+                .id(id)
+                .username(name)
+                .discriminator("0")
+                .globalName(Optional.empty())
+                .avatar(Optional.empty())
+                .bot(bot)
+                .build();
+    }
+
+    private GuildUpdateData guild(FakeGuild guild) {
+        if (guild == null) throw new IllegalArgumentException("Unknown guild");
+        return GuildUpdateData.builder()
+                .id(guild.id)
+                .name(guild.name)
+                .icon(Optional.empty())
+                .splash(Optional.empty())
+                .discoverySplash(Optional.empty())
+                .ownerId(BOT_ID)
+                .afkChannelId(Optional.empty())
+                .afkTimeout(300)
+                .verificationLevel(0)
+                .defaultMessageNotifications(0)
+                .explicitContentFilter(0)
+                .mfaLevel(0)
+                .applicationId(Optional.empty())
+                .systemChannelId(Optional.empty())
+                .systemChannelFlags(0)
+                .rulesChannelId(Optional.empty())
+                .vanityUrlCode(Optional.empty())
+                .description(Optional.empty())
+                .banner(Optional.empty())
+                .premiumTier(0)
+                .preferredLocale("en-US")
+                .publicUpdatesChannelId(Optional.empty())
+                .safetyAlertsChannelId(Optional.empty())
+                .nsfwLevel(0)
+                .build();
+    }
+
+    private ChannelData channel(FakeChannel channel) {
+        if (channel == null) throw new IllegalArgumentException("Unknown channel");
+        ImmutableChannelData.Builder data = ChannelData.builder()
+                .id(channel.id)
+                .type(channel.type)
+                .guildId(Id.of(channel.guildId))
+                .name(channel.name)
+                .position(channel.position)
+                .permissionOverwrites(List.of())
+                .parentId(Possible.of(Optional.ofNullable(channel.parentId).map(Id::of)));
+        if (channel.type == 0) {
+            data.topic(Possible.of(Optional.ofNullable(channel.topic)))
+                    .nsfw(false)
+                    .lastMessageId(Possible.of(Optional.ofNullable(channel.last()).map(Id::of)));
+        }
+        return data.build();
+    }
+
+    private ChannelData createChannel(long guildId, String body) {
+        JsonNode request = readTree(body);
+        long id = nextId();
+        JsonNode parent = request.path("parent_id");
+        FakeChannel channel = new FakeChannel(id, guildId, request.path("type").asInt(0),
+                request.path("name").asText(), parent.isMissingNode() || parent.isNull() ? null : parent.asLong(),
+                request.path("topic").isTextual() ? request.path("topic").asText() : null);
+        channels.put(id, channel);
+        return channel(channel);
+    }
+
+    private List<MessageData> messages(HttpServerRequest req) {
+        FakeChannel channel = channels.get(Long.parseLong(req.param("channel")));
+        if (channel == null) throw new IllegalArgumentException("Unknown channel");
+        Map<String, List<String>> query = new QueryStringDecoder(req.uri()).parameters();
+        int limit = Math.min(PAGE_SIZE, Integer.parseInt(query.getOrDefault("limit", List.of("50")).get(0)));
+        long after = Long.parseLong(query.getOrDefault("after", List.of("0")).get(0));
+        List<MessageData> page = new ArrayList<>(limit);
+        synchronized (channel) {
+            int index = channel.indexAfter(after);
+            for (int i = index; i < Math.min(channel.size, index + limit); i++) page.add(message(channel, i));
+        }
+        // Pages after a message are ordered newest first
+        Collections.reverse(page);
+        return page;
+    }
+
+    private MessageData message(FakeChannel channel, int index) {
+        long id = channel.ids[index];
+        long authorId = 2000 + index % 7;
+        ImmutableMessageData.Builder data = MessageData.builder()
+                .id(id)
+                .channelId(channel.id)
+                .guildId(Id.of(channel.guildId))
+                .author(user(authorId, "user-"+authorId, false))
+                .content("Message "+index+" of "+channel.name)
+                .timestamp(Snowflake.of(id).getTimestamp().toString())
+                .editedTimestamp(Optional.empty())
+                .tts(false)
+                .mentionEveryone(false)
+                .pinned(false)
+                .type(0);
+        if (channel.attachmentEvery > 0 && index % channel.attachmentEvery == channel.attachmentEvery - 1
+                && index < channel.seeded) {
+            String url = getBaseUrl()+"/attachments/"+id+"/file-"+index+".bin?size="+channel.attachmentSize;
+            data.addAttachment(AttachmentData.builder()
+                    .id(id)
+                    .filename("file-"+index+".bin")
+                    .size(channel.attachmentSize)
+                    .url(url)
+                    .proxyUrl(url)
+                    .build());
+        }
+        if (channel.reacted.contains(id)) {
+            data.reactions(List.of(ReactionData.builder()
+                    .count(1)
+                    .me(true)
+                    .emoji(EmojiData.builder().id(Optional.empty()).name("🔄").build())
+                    .build()));
+        }
+        return data.build();
+    }
+
+    private MessageData createMessage(long channelId, Long webhookId) {
+        FakeChannel channel = channels.get(channelId);
+        if (channel == null) throw new IllegalArgumentException("Unknown channel");
+        long id = nextId();
+        MessageData message;
+        synchronized (channel) {
+            channel.append(id);
+            message = message(channel, channel.size - 1);
+        }
+        if (webhookId == null) return message;
+        return MessageData.builder().from(message).webhookId(Id.of(webhookId)).build();
+    }
+
+    private Object react(HttpServerRequest req, boolean add) {
+        FakeChannel channel = channels.get(Long.parseLong(req.param("channel")));
+        if (channel == null) throw new IllegalArgumentException("Unknown channel");
+        String emoji = URLDecoder.decode(req.param("emoji"), StandardCharsets.UTF_8);
+        if (!emoji.equals("🔄")) throw new IllegalArgumentException("Unexpected emoji: "+emoji);
+        long message = Long.parseLong(req.param("message"));
+        if (add) channel.reacted.add(message);
+        else channel.reacted.remove(message);
+        return null;
+    }
+
+    private WebhookData webhook(long channelId) {
+        // The channel ID is used as token, executions are routed back to the channel
+        return WebhookData.builder()
+                .id(nextId())
+                .type(1)
+                .channelId(Optional.of(Id.of(channelId)))
+                .name(Optional.of("Migration"))
+                .avatar(Optional.empty())
+                .token(String.valueOf(channelId))
+                .applicationId(Optional.empty())
+                .build();
+    }
+
+    private Publisher<Void> attachment(HttpServerRequest req, HttpServerResponse res) {
+        Map<String, List<String>> query = new QueryStringDecoder(req.uri()).parameters();
+        int size = Integer.parseInt(query.getOrDefault("size", List.of("0")).get(0));
+        attachmentBytes.add(size);
+        byte[] chunk = new byte[Math.min(size, 64 * 1024)];
+        Arrays.fill(chunk, (byte) 'x');
+        return res.header("Content-Length", String.valueOf(size))
+                .send(Flux.range(0, (size + chunk.length - 1) / Math.max(1, chunk.length))
+                        .map(i -> Unpooled.wrappedBuffer(chunk, 0, Math.min(chunk.length, size - i * chunk.length))));
+    }
+
+    /**
+     * A gateway session: hello, ready once identified, then heartbeat acknowledgements.
+     * Payloads are sent as a zlib stream, as requested by Discord4J.
+     */
+    private Publisher<Void> gatewaySession(WebsocketInbound in, WebsocketOutbound out) {
+        Deflater deflater = new Deflater();
+        Sinks.Many<String> outbound = Sinks.many().unicast().onBackpressureBuffer();
+        outbound.tryEmitNext("{\"op\":10,\"t\":null,\"s\":null,\"d\":{\"heartbeat_interval\":41250}}");
+        Mono<Void> receive = in.aggregateFrames().receive().asString()
+                .doOnNext(payload -> {
+                    JsonNode node = readTree(payload);
+                    int op = node.path("op").asInt();
+                    if (op == 1) outbound.tryEmitNext("{\"op\":11,\"t\":null,\"s\":null,\"d\":null}");
+                    else if (op == 2) outbound.tryEmitNext(ready());
+                })
+                .doFinally(s -> {
+                    outbound.tryEmitComplete();
+                    deflater.end();
+                })
+                .then();
+        Mono<Void> send = out.sendObject(outbound.asFlux()
+                        .map(payload -> new BinaryWebSocketFrame(Unpooled.wrappedBuffer(compress(deflater, payload)))))
+                .then();
+        return Mono.when(receive, send);
+    }
+
+    private String ready() {
+        try {
+            return "{\"op\":0,\"t\":\"READY\",\"s\":1,\"d\":{\"v\":10,\"user\":"
+                    +mapper.writeValueAsString(user(BOT_ID, "bench-bot", true))
+                    +",\"private_channels\":[],\"guilds\":[],\"session_id\":\"bench\",\"resume_gateway_url\":"
+                    +"\"ws://127.0.0.1:"+server.port()+"/gateway\",\"trace\":[],"
+                    +"\"application\":{\"id\":\""+BOT_ID+"\",\"flags\":0}}}";
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static synchronized byte[] compress(Deflater deflater, String payload) {
+        deflater.setInput(payload.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        do {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, n);
+        } while (n == buffer.length);
+        return out.toByteArray();
+    }
+
+    private JsonNode readTree(String json) {
+        try {
+            return mapper.readTree(json.isEmpty() ? "{}" : json);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private record FakeGuild(long id, String name) {}
+
+    private static class FakeChannel {
+        private final long id;
+        private final long guildId;
+        private final int type;
+        private final String name;
+        private final Long parentId;
+        private final String topic;
+        private final int position;
+        private final Set<Long> reacted = ConcurrentHashMap.newKeySet();
+        private long[] ids = new long[16];
+        private int size;
+        private int seeded;
+        private int attachmentEvery;
+        private int attachmentSize;
+
+        private FakeChannel(long id, long guildId, int type, String name, Long parentId, String topic) {
+            this.id = id;
+            this.guildId = guildId;
+            this.type = type;
+            this.name = name;
+            this.parentId = parentId;
+            this.topic = topic;
+            this.position = (int) (id % 1000);
+        }
+
+        private synchronized void append(long messageId) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = messageId;
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private synchronized Long last() {
+            return size == 0 ? null : ids[size - 1];
+        }
+
+        private int indexAfter(long after) {
+            int index = Arrays.binarySearch(ids, 0, size, after);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+    }
+
+    private static class Bucket {
+        private int remaining;
+        private long resetAt;
+    }
+}
@@ -0,0 +1,134 @@
+package com.billialpha.discord.transfer.bench;
+
+import com.billialpha.discord.transfer.Command;
+import com.billialpha.discord.transfer.DiscordTransfer;
+import com.billialpha.discord.transfer.Parameters;
+import com.billialpha.discord.transfer.commands.CleanCommand;
+import com.billialpha.discord.transfer.commands.MigrateCommand;
+import com.billialpha.discord.transfer.migration.WriteScheduler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the {@code migrate} and {@code clean} actions against a {@link FakeDiscord} seeded with a synthetic guild,
+ * and reports their throughput. The benchmark fails (exits with status 1) if some messages were not migrated, or are
+ * still marked after the clean.
+ * <p>
+ *     Run it with {@code mvn -P benchmark test-compile exec:java -Dexec.args="..."}, arguments after {@code --} are
+ *     passed to the {@code migrate} action.
+ * </p>
+ */
+public class MigrationBenchmark {
+    private static final Parameters PARAMETERS = Parameters.create()
+            .withOption("channels", null, "Number of source channels", Integer::parseUnsignedInt, 4)
+            .withOption("messages", null, "Number of messages of each channel", Integer::parseUnsignedInt, 500)
+            .withOption("attachment-every", null,
+                    "Every how many messages one carries an attachment, 0 for none", Integer::parseUnsignedInt, 10)
+            .withOption("attachment-size", null, "Size of attachments, in bytes", Integer::parseUnsignedInt, 65536)
+            .withOption("bucket-size", null,
+                    "Number of requests allowed per rate-limit bucket and window", Integer::parseUnsignedInt, 50)
+            .withOption("bucket-window", null,
+                    "Duration of a rate-limit window, in milliseconds", Long::parseUnsignedLong, 1000L)
+            .withFlag("skip-clean", null, "Do not benchmark the clean action")
+            .build();
+
+    public static void main(String[] args) throws Exception {
+        int separator = Arrays.asList(args).indexOf("--");
+        String[] benchArgs = separator < 0 ? args : Arrays.copyOfRange(args, 0, separator);
+        List<String> migrateArgs = separator < 0 ? List.of()
+                : Arrays.asList(Arrays.copyOfRange(args, separator + 1, args.length));
+        Command.Invocation params = PARAMETERS.parse(benchArgs);
+        int channelCount = params.get("channels");
+        int messageCount = params.get("messages");
+
+        Path workDir = Files.createTempDirectory("discord-transfer-bench");
+        int status = 0;
+        try (FakeDiscord discord = new FakeDiscord(params.get("bucket-size"), params.get("bucket-window"))) {
+            long srcGuild = discord.createGuild("Source");
+            long dstGuild = discord.createGuild("Destination");
+            long category = discord.createCategory(srcGuild, "bench");
+            List<Long> srcChannels = new ArrayList<>();
+            for (int i = 0; i < channelCount; i++) {
+                srcChannels.add(discord.createTextChannel(srcGuild, category, "channel-"+i, messageCount,
+                        params.get("attachment-every"), params.get("attachment-size")));
+            }
+
+            // Migrate
+            List<String> args1 = new ArrayList<>(List.of(Long.toString(srcGuild), Long.toString(dstGuild),
+                    "--cache-dir", workDir.resolve("cache").toString(),
+                    "--journal", workDir.resolve("bench.journal").toString()));
+            args1.addAll(migrateArgs);
+            long requests = discord.getRequestCount();
+            long rateLimited = discord.getRateLimitedCount();
+            long elapsed = run(discord, MigrateCommand.DESCRIPTION, args1);
+            long posted = discord.getChannels(dstGuild).stream().mapToLong(discord::getMessageCount).sum();
+            // Source messages are marked once migrated, unless reactions are disabled
+            long migrated = srcChannels.stream().mapToLong(discord::getReactionCount).sum();
+            report("migrate", migrated > 0 ? migrated : posted, elapsed, discord.getRequestCount() - requests,
+                    discord.getRateLimitedCount() - rateLimited);
+            System.out.println("migrate: "+posted+" messages posted");
+            // The run is not comparable if some messages were not migrated
+            if (migrated > 0 && migrated != (long) channelCount * messageCount) {
+                System.err.println("FAILED: expected "+(long) channelCount * messageCount+" migrated messages, got "
+                        +migrated);
+                status = 1;
+            }
+
+            // Clean
+            if (!params.hasFlag("skip-clean")) {
+                long marked = srcChannels.stream().mapToLong(discord::getReactionCount).sum();
+                requests = discord.getRequestCount();
+                rateLimited = discord.getRateLimitedCount();
+                elapsed = run(discord, CleanCommand.DESCRIPTION,
+                        List.of(Long.toString(srcGuild), "--category", Long.toString(category)));
+                long left = srcChannels.stream().mapToLong(discord::getReactionCount).sum();
+                report("clean", marked - left, elapsed, discord.getRequestCount() - requests,
+                        discord.getRateLimitedCount() - rateLimited);
+                if (left > 0) {
+                    System.err.println("FAILED: "+left+" messages still marked after clean");
+                    status = 1;
+                }
+            }
+        } finally {
+            deleteRecursively(workDir);
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Run an action against the fake API, with a client of its own.
+     * @return The duration of the action, in nanoseconds, logging in excluded.
+     */
+    private static long run(FakeDiscord discord, Command.Description description, List<String> args)
+            throws Exception {
+        Command.Invocation params = description.params().extend(DiscordTransfer.GLOBAL_OPTIONS)
+                .parse(args.toArray(String[]::new));
+        WriteScheduler writes = new WriteScheduler();
+        params = params.withClient(DiscordTransfer.initClient(discord.getToken(), writes, discord.getApiUrl(),
+                description.needsGateway()), writes);
+        Command command = description.build(params);
+        long start = System.nanoTime();
+        command.execute();
+        long elapsed = System.nanoTime() - start;
+        params.client.logout().block();
+        return elapsed;
+    }
+
+    private static void report(String action, long messages, long nanos, long requests, long rateLimited) {
+        double seconds = nanos / 1e9;
+        System.out.println(action+": "+messages+" messages in "+String.format("%.2f", seconds)+"s, "
+                +String.format("%.1f", messages / seconds)+" messages/s, "
+                +requests+" requests, "+rateLimited+" rate-limited");
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.billialpha.discord.transfer.bench;
+
+import com.billialpha.discord.transfer.Command;
+import com.billialpha.discord.transfer.DiscordTransfer;
+import com.billialpha.discord.transfer.Parameters;
+import com.billialpha.discord.transfer.commands.MigrateCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the parsing of a {@code migrate} command line, long and short options included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParametersBenchmark {
+    private static final Parameters PARAMETERS = MigrateCommand.DESCRIPTION.params()
+            .extend(DiscordTransfer.GLOBAL_OPTIONS);
+    private static final String[] ARGS = {
+            "123456789012345678", "234567890123456789", "345678901234567890",
+            "-vv", "-c", "456789012345678901", "-s", "567890123456789012", "--include-channel", "678901234567890123",
+            "--after", "2021-01-01T00:00:00Z", "--pack", "--webhook-pool", "5", "-w", "--journal", "a.journal",
+    };
+
+    @Benchmark
+    public Command.Invocation parse() throws Exception {
+        return PARAMETERS.parse(ARGS);
+    }
+}
@@ -0,0 +1,119 @@
+package com.billialpha.discord.transfer.bench;
+
+import com.billialpha.discord.transfer.DiscordTransfer;
+import com.billialpha.discord.transfer.commands.MigrateCommand;
+import com.billialpha.discord.transfer.migration.ContentRewriter;
+import com.billialpha.discord.transfer.migration.MessageLayout;
+import com.billialpha.discord.transfer.migration.MigrationJournal;
+import com.billialpha.discord.transfer.migration.WriteScheduler;
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.object.Embed;
+import discord4j.discordjson.json.EmbedAuthorData;
+import discord4j.discordjson.json.EmbedData;
+import discord4j.discordjson.json.EmbedFieldData;
+import discord4j.discordjson.json.EmbedFooterData;
+import discord4j.core.spec.EmbedCreateSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-message transform: content rewriting, embed layout and cloning of source embeds.
+ * <p>
+ *     Source embeds need a client, one is logged in to a {@link FakeDiscord} for the duration of the benchmark.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformBenchmark {
+    private static final String PLAIN = "Hello everyone, the meeting is moved to thursday 6pm. "
+            .repeat(8);
+    private static final String MENTIONS = ("Hey <@&123456789012345678> and <@234567890123456789>, see <#345678901234567890>"
+            +" and https://discord.com/channels/111111111111111111/345678901234567890/567890123456789012"
+            +" or https://example.com/some/page?query=1 for details <@&456789012345678901>. ").repeat(4);
+
+    private FakeDiscord discord;
+    private GatewayDiscordClient client;
+    private Embed embed;
+    private Path journalFile;
+    private MigrationJournal journal;
+    private ContentRewriter rewriter;
+
+    @Setup
+    public void setup() throws IOException {
+        journalFile = Files.createTempFile("discord-transfer-bench", ".journal");
+        journal = MigrationJournal.open(journalFile);
+        journal.recordMessage(Snowflake.of(345678901234567890L), Snowflake.of(567890123456789012L),
+                Snowflake.of(1167890123456789012L));
+        rewriter = new ContentRewriter(Snowflake.of(111111111111111111L), Snowflake.of(1111111111111111111L),
+                Map.of(Snowflake.of(345678901234567890L), Snowflake.of(1345678901234567890L)),
+                Map.of(Snowflake.of(123456789012345678L), Snowflake.of(1123456789012345678L)),
+                journal);
+        discord = new FakeDiscord(1000, 1000);
+        client = DiscordTransfer.initClient(discord.getToken(), new WriteScheduler(), discord.getApiUrl(), false);
+        embed = new Embed(client, EmbedData.builder()
+                .title("Release notes")
+                .description(PLAIN)
+                .url("https://example.com/release")
+                .color(0x3498db)
+                .timestamp(Instant.now().toString())
+                .author(EmbedAuthorData.builder().name("Release bot").url("https://example.com").build())
+                .footer(EmbedFooterData.builder().text("v1.2.3").build())
+                .fields(List.of(
+                        EmbedFieldData.builder().name("Added").value("Packing mode").inline(true).build(),
+                        EmbedFieldData.builder().name("Fixed").value("Rate-limit waits").inline(true).build(),
+                        EmbedFieldData.builder().name("Removed").value("Nothing").inline(false).build()))
+                .build());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.logout().block();
+        discord.close();
+        journal.close();
+        Files.delete(journalFile);
+    }
+
+    @Benchmark
+    public String rewritePlainContent() {
+        return rewriter.rewrite(PLAIN);
+    }
+
+    @Benchmark
+    public String rewriteContentWithMentions() {
+        return rewriter.rewrite(MENTIONS);
+    }
+
+    @Benchmark
+    public List<EmbedCreateSpec> buildLayout() {
+        return MessageLayout.build("author", "https://cdn.discordapp.com/avatars/1/a.png", Instant.EPOCH, MENTIONS,
+                List.of(new MessageLayout.LinkedAttachment("image.png", "https://example.com/image.png", true)),
+                List.of());
+    }
+
+    @Benchmark
+    public EmbedCreateSpec cloneEmbed() {
+        return MigrateCommand.cloneEmbed(embed);
+    }
+}
@@ -1,5 +1,6 @@
 package com.billialpha.discord.transfer;
 
+import com.billialpha.discord.transfer.migration.WriteScheduler;
 import discord4j.core.GatewayDiscordClient;
 
 import java.util.HashMap;
@@ -15,9 +16,11 @@ public abstract class Command {
     public static class Invocation {
         public final Map<String, Parameters.ParamValue<?>> params;
         public final GatewayDiscordClient client;
+        public final WriteScheduler writes;
 
-        public Invocation(GatewayDiscordClient client, Parameters.ParamValue<?>... params) {
+        public Invocation(GatewayDiscordClient client, WriteScheduler writes, Parameters.ParamValue<?>... params) {
             this.client = client;
+            this.writes = writes;
             this.params = new HashMap<>();
             for (Parameters.ParamValue<?> v : params) {
                 this.params.put(v.name(), v);
@@ -55,18 +58,38 @@ public abstract class Command {
             return ((Integer) params.get(key).value()) > 0;
         }
 
-        public Invocation withClient(GatewayDiscordClient newClient) {
-            return new Invocation(newClient, params.values().toArray(Parameters.ParamValue[]::new));
+        public Invocation withClient(GatewayDiscordClient newClient, WriteScheduler newWrites) {
+            return new Invocation(newClient, newWrites, params.values().toArray(Parameters.ParamValue[]::new));
         }
     }
 
+    /**
+     * The connection to Discord a command needs.
+     */
+    public enum Connection {
+        /** The command does not use Discord. */
+        NONE,
+        /** The command only sends REST requests, entities are retrieved from the API. */
+        REST,
+        /** The command receives events from the gateway. */
+        GATEWAY
+    }
+
     public record Description (
             String name,
             String desc,
-            boolean needsClient,
+            Connection connection,
             Parameters params,
             Function<Invocation, Command> constructor
     ) {
+        public boolean needsClient() {
+            return connection != Connection.NONE;
+        }
+
+        public boolean needsGateway() {
+            return connection == Connection.GATEWAY;
+        }
+
         public Command build(Invocation invocation) {
             return constructor.apply(invocation);
         }
@@ -2,16 +2,43 @@ package com.billialpha.discord.transfer;
 
 import ch.qos.logback.classic.Level;
 import com.billialpha.discord.transfer.commands.CleanCommand;
+import com.billialpha.discord.transfer.commands.ExportCommand;
 import com.billialpha.discord.transfer.commands.HelpCommand;
+import com.billialpha.discord.transfer.commands.ImportCommand;
 import com.billialpha.discord.transfer.commands.MigrateCommand;
+import com.billialpha.discord.transfer.commands.SyncCommand;
+import com.billialpha.discord.transfer.migration.Metrics;
+import com.billialpha.discord.transfer.migration.WriteScheduler;
+import discord4j.common.ReactorResources;
+import discord4j.common.retry.ReconnectOptions;
+import discord4j.common.store.Store;
 import discord4j.core.DiscordClient;
 import discord4j.core.GatewayDiscordClient;
+import discord4j.core.GatewayResources;
+import discord4j.core.event.EventDispatcher;
 import discord4j.core.object.entity.User;
+import discord4j.core.retriever.EntityRetrievalStrategy;
+import discord4j.core.shard.LocalShardCoordinator;
+import discord4j.core.shard.MemberRequestFilter;
+import discord4j.gateway.GatewayClient;
+import discord4j.gateway.GatewayClientGroup;
+import discord4j.gateway.GatewayReactorResources;
 import discord4j.gateway.intent.Intent;
 import discord4j.gateway.intent.IntentSet;
+import discord4j.gateway.json.GatewayPayload;
+import discord4j.gateway.json.ShardGatewayPayload;
+import discord4j.rest.request.RouterOptions;
+import discord4j.rest.route.Routes;
+import discord4j.voice.DefaultVoiceConnectionFactory;
+import discord4j.voice.VoiceReactorResources;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 
 /**
@@ -24,26 +51,72 @@ public class DiscordTransfer {
     static {
         ACTIONS.put("help", HelpCommand.DESCRIPTION);
         ACTIONS.put("migrate", MigrateCommand.DESCRIPTION);
+        ACTIONS.put("sync", SyncCommand.DESCRIPTION);
         ACTIONS.put("clean", CleanCommand.DESCRIPTION);
+        ACTIONS.put("export", ExportCommand.DESCRIPTION);
+        ACTIONS.put("import", ImportCommand.DESCRIPTION);
     }
 
     public static final Parameters.Parameter<?>[] GLOBAL_OPTIONS = Parameters.create()
             .withFlag("verbose", "v", "Enable debug logs")
             .withFlag("quiet", "q", "Be as silent as possible")
             .withFlag("help", "?", "Get help on the current action")
+            .withOption("metrics-file", null,
+                    "File periodically rewritten with metrics, in the Prometheus text format", Path::of)
+            .withOption("metrics-interval", null,
+                    "Pause between two writes of the metrics file, in seconds", Integer::parseUnsignedInt, 15)
+            .withFlag("virtual-threads", null, "Run channel and attachment work on virtual threads (Java 21 or later)")
             .buildParams();
 
-    public static GatewayDiscordClient initClient(String token) {
-        DiscordClient discord = DiscordClient.create(token);
+    public static GatewayDiscordClient initClient(String token, WriteScheduler writes, boolean gateway) {
+        return initClient(token, writes, Routes.BASE_URL, gateway);
+    }
+
+    /**
+     * Log in to Discord.
+     * <p>
+     *     Without gateway, no session is opened: the client only sends REST requests, entities are always retrieved
+     *     from the API and nothing is cached, events are never received. Commands which only read and write through
+     *     REST start without waiting for the gateway, nor holding the state of every guild of the bot.
+     * </p>
+     * @param token The bot token.
+     * @param writes The scheduler through which API writes are sent.
+     * @param apiUrl The base URL of the Discord API, the gateway URL is obtained from it.
+     * @param gateway Whether to connect to the gateway.
+     * @return The connected client.
+     */
+    public static GatewayDiscordClient initClient(String token, WriteScheduler writes, String apiUrl,
+                                                  boolean gateway) {
+        DiscordClient discord = DiscordClient.builder(token)
+                .setReactorResources(ReactorResources.builder()
+                        .httpClient(writes.instrument(ReactorResources.DEFAULT_HTTP_CLIENT.get()))
+                        .build())
+                .onClientResponse(writes)
+                .setExtraOptions(o -> new RouterOptions(o.getToken(), o.getReactorResources(),
+                        o.getExchangeStrategies(), o.getResponseTransformers(), o.getGlobalRateLimiter(),
+                        o.getRequestQueueFactory(), apiUrl))
+                .build();
 
-        LOGGER.debug("Logging in ...");
-        GatewayDiscordClient client = Objects.requireNonNull(discord.gateway()
-                .setEnabledIntents(IntentSet.of(
-                        Intent.MESSAGE_CONTENT,
-                        Intent.GUILD_MESSAGES,
-                        Intent.GUILD_MESSAGE_REACTIONS))
-                .login().block(), "Invalid bot token");
+        GatewayDiscordClient client;
+        if (gateway) {
+            LOGGER.debug("Logging in ...");
+            client = Objects.requireNonNull(discord.gateway()
+                    .setEnabledIntents(IntentSet.of(
+                            Intent.MESSAGE_CONTENT,
+                            Intent.GUILD_MESSAGES,
+                            Intent.GUILD_MESSAGE_REACTIONS))
+                    .login().block(), "Invalid bot token");
+        } else {
+            ReactorResources resources = discord.getCoreResources().getReactorResources();
+            client = new GatewayDiscordClient(discord,
+                    new GatewayResources(Store.noOp(), EventDispatcher.buffering(), LocalShardCoordinator.create(),
+                            MemberRequestFilter.none(), new GatewayReactorResources(resources),
+                            new VoiceReactorResources(resources), ReconnectOptions.create(), IntentSet.none()),
+                    Mono.empty(), new NoGateway(), new DefaultVoiceConnectionFactory(), EntityRetrievalStrategy.REST,
+                    Collections.emptySet());
+        }
 
+        // Without gateway, this is the first request checking the token
         User self = Objects.requireNonNull(client.getSelf().block());
         LOGGER.info("Logged in, user: "+self.getUsername());
 
@@ -53,6 +126,7 @@ public class DiscordTransfer {
     public static void main(String[] args) {
         Command.Invocation params = null;
         Command.Description command;
+        Disposable metricsExport = null;
         try {
             // Parse call
             Call call = Call.parse(args);
@@ -86,11 +160,20 @@ public class DiscordTransfer {
                 }
             }
 
+            if (params.hasFlag("virtual-threads") && !VirtualThreads.isAvailable())
+                throw new Exception("Virtual threads need Java 21 or later, running on "+Runtime.version());
+
             // Build client if needed
             if (command.needsClient()) {
                 String token = System.getenv("DISCORD_TOKEN");
                 if (token == null || token.isEmpty()) throw new Exception("Missing DISCORD_TOKEN !");
-                params = params.withClient(initClient(token));
+                Metrics metrics = new Metrics();
+                metrics.register();
+                Path metricsFile = params.get("metrics-file");
+                if (metricsFile != null) metricsExport = metrics.exportPeriodically(metricsFile,
+                        Duration.ofSeconds(Math.max(1, params.<Integer>get("metrics-interval"))));
+                WriteScheduler writes = new WriteScheduler(metrics);
+                params = params.withClient(initClient(token, writes, command.needsGateway()), writes);
             }
         } catch (Exception ex) {
             System.err.println(ex.getMessage());
@@ -117,10 +200,42 @@ public class DiscordTransfer {
 
         // Logout if connected
         if (params.client != null) params.client.logout().block();
+        if (metricsExport != null) metricsExport.dispose();
 
         System.exit(exitCode);
     }
 
+    /**
+     * The gateway of a client which does not connect to it, with no shard to send payloads to.
+     */
+    private static class NoGateway implements GatewayClientGroup {
+        @Override
+        public Optional<GatewayClient> find(int shardId) {
+            return Optional.empty();
+        }
+
+        @Override
+        public int getShardCount() {
+            // Shard indexes are computed modulo the count
+            return 1;
+        }
+
+        @Override
+        public Mono<Void> multicast(GatewayPayload<?> payload) {
+            return Mono.error(new UnsupportedOperationException("Not connected to the gateway"));
+        }
+
+        @Override
+        public Mono<Void> unicast(ShardGatewayPayload<?> payload) {
+            return Mono.error(new UnsupportedOperationException("Not connected to the gateway"));
+        }
+
+        @Override
+        public Mono<Void> logout() {
+            return Mono.empty();
+        }
+    }
+
     public record Call (
             String action,
             List<String> args
@@ -225,7 +225,7 @@ public class Parameters {
             values.put(p.name, p.getDefault());
         }
 
-        return new Command.Invocation(null, values.values().toArray(ParamValue[]::new));
+        return new Command.Invocation(null, null, values.values().toArray(ParamValue[]::new));
     }
 
     private <T> ParamValue<T> updateParamValue(
@@ -0,0 +1,61 @@
+package com.billialpha.discord.transfer;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Schedulers backed by virtual threads, available when running on Java 21 or later.
+ * <p>
+ *     Virtual threads are looked up by reflection, so that the same sources build for Java 17 (the default) and for
+ *     Java 21 (the {@code java21} profile). Work scheduled on a virtual thread may block, on disk or network I/O
+ *     or on {@code block()}, without holding one of the few threads of {@link Schedulers#parallel()}.
+ * </p>
+ */
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+    private static final Method NAME = OF_VIRTUAL == null ? null
+            : lookup(OF_VIRTUAL.getReturnType(), "name", String.class, long.class);
+    private static final Method FACTORY = OF_VIRTUAL == null ? null
+            : lookup(OF_VIRTUAL.getReturnType(), "factory");
+    private static final Method EXECUTOR = lookup(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private VirtualThreads() {}
+
+    /**
+     * @return Whether the running JVM supports virtual threads.
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null && NAME != null && FACTORY != null && EXECUTOR != null;
+    }
+
+    /**
+     * Create a scheduler running each task on its own virtual thread.
+     * @param name The name of the scheduler, its threads are numbered after it.
+     * @return The scheduler.
+     * @throws UnsupportedOperationException If the running JVM does not support virtual threads.
+     */
+    public static Scheduler newScheduler(String name) {
+        if (!isAvailable()) throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name+"-", 0L);
+            ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+            ExecutorService executor = (ExecutorService) EXECUTOR.invoke(null, factory);
+            return Schedulers.fromExecutorService(executor, name);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("Unable to create virtual threads", ex);
+        }
+    }
+
+    private static Method lookup(Class<?> type, String name, Class<?>... parameters) {
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+}
@@ -2,12 +2,15 @@ package com.billialpha.discord.transfer.commands;
 
 import com.billialpha.discord.transfer.Command;
 import com.billialpha.discord.transfer.Parameters;
+import com.billialpha.discord.transfer.migration.ChannelSelector;
+import com.billialpha.discord.transfer.migration.ThreadDirectory;
+import com.billialpha.discord.transfer.migration.WriteScheduler;
 import discord4j.common.util.Snowflake;
 import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.Message;
 import discord4j.core.object.entity.User;
-import discord4j.core.object.entity.channel.Category;
 import discord4j.core.object.entity.channel.TextChannel;
+import discord4j.rest.route.Routes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
@@ -24,7 +27,7 @@ public class CleanCommand extends Command {
     public static final Description DESCRIPTION = new Description(
             "clean",
             "Clean reaction on migrated messages",
-            true,
+            Connection.REST,
             Parameters.create()
                     .withArgument("server",
                             "The server to clean reactions on", Snowflake::of)
@@ -35,44 +38,83 @@ public class CleanCommand extends Command {
                     .withOption("after", "a",
                             "Only migrate messages after the given date", Instant::parse)
                     .withOption("delay", "d",
-                            "Pause between each message posted", Integer::parseUnsignedInt, 0)
+                            "Minimum pause between two reactions removed in a channel", Integer::parseUnsignedInt, 0)
+                    .withOption("channel-concurrency", null,
+                            "Number of channels cleaned at the same time", Integer::parseUnsignedInt, 4)
+                    .withFlag("no-threads", null, "Do not clean threads and forum posts")
                     .build(),
             CleanCommand::new
     );
 
+    private final WriteScheduler writes;
     private final Guild server;
-    private final Set<Snowflake> skipChannels;
-    private final Set<Snowflake> categories;
+    private final ChannelSelector selector;
+    private final ThreadDirectory threads;
     private final Instant afterDate;
-    private final int delay;
+    private final int channelConcurrency;
 
     public CleanCommand(Invocation params) {
         this.server = params.client.getGuildById(params.get("server")).block();
-        this.skipChannels = new HashSet<>(params.getList("skip-channel"));
-        this.categories = new HashSet<>(params.getList("category"));
+        this.selector = new ChannelSelector(server, new HashSet<>(params.getList("category")), Set.of(),
+                new HashSet<>(params.getList("skip-channel")));
+        this.threads = params.hasFlag("no-threads") ? null : new ThreadDirectory(params.client, params.writes);
         this.afterDate = params.get("after");
-        this.delay = params.get("delay");
+        this.channelConcurrency = Math.max(1, params.<Integer>get("channel-concurrency"));
+        this.writes = params.writes;
+        this.writes.setMinInterval(Duration.ofMillis(params.<Integer>get("delay")));
     }
 
     @Override
     public void execute() {
-        cleanMigratedEmotes().blockLast();
+        long cleaned = cleanMigratedEmotes().count().blockOptional().orElse(0L);
+        LOGGER.info("Cleaned reaction on "+cleaned+" messages");
     }
 
-    public Flux<Void> cleanMigratedEmotes() {
-        Flux<Message> flux = getSelectedCategories().flatMap(Category::getChannels)
-                .ofType(TextChannel.class)
-                .filter(c -> !skipChannels.contains(c.getId()))
-                .flatMap(c -> c.getMessagesAfter(getChannelStartDate(c.getId())))
-                .filter(m -> m.getType() == Message.Type.DEFAULT || m.getType() == Message.Type.REPLY);
-        if (delay > 0) flux = flux.delayElements(Duration.ofMillis(delay));
-        return flux.doOnNext(m -> {
+    /**
+     * Remove the migrated reaction from the messages of the selected channels.
+     * <p>
+     *     Only messages carrying the reaction of the bot are cleaned. Channels are cleaned concurrently, each one
+     *     removing its reactions one at a time through its own rate-limit lane, so that every channel gets an
+     *     equal share of the global budget.
+     * </p>
+     * <p>
+     *     The public threads of the selected text channels, and the posts of the selected forum channels, are cleaned
+     *     after them, like they are migrated.
+     * </p>
+     * @return The cleaned messages.
+     */
+    public Flux<Message> cleanMigratedEmotes() {
+        Flux<TextChannel> channels = selector.getSelectedTextChannels().cache();
+        return Flux.concat(channels, getThreads(channels))
+                .flatMap(this::cleanChannel, channelConcurrency);
+    }
+
+    private Flux<TextChannel> getThreads(Flux<TextChannel> channels) {
+        if (threads == null) return Flux.empty();
+        return Flux.concat(
+                        channels.map(TextChannel::getId),
+                        selector.getSelectedForumChannels(threads).map(forum -> Snowflake.of(forum.id())))
+                .collectList()
+                .flatMapMany(parents -> threads.getThreads(server.getId(), parents, channelConcurrency))
+                .doOnNext(thread -> LOGGER.debug("Cleaning thread: "+thread.getName()));
+    }
+
+    private Flux<Message> cleanChannel(TextChannel channel) {
+        return channel.getMessagesAfter(getChannelStartDate(channel.getId()))
+                .doOnNext(m -> writes.getMetrics().messageFetched())
+                .filter(m -> m.getType() == Message.Type.DEFAULT || m.getType() == Message.Type.REPLY)
+                .filter(m -> m.getReactions().stream()
+                        .anyMatch(r -> r.selfReacted() && r.getEmoji().equals(MigrateCommand.MIGRATED_EMOJI)))
+                .doOnNext(m -> {
                     Optional<User> author = m.getAuthor();
                     if (author.isEmpty()) return;
                     LOGGER.info("Cleaning reaction ("+m.getChannelId().asString()+"/"+m.getId().asString()+"): "+
                             author.get().getUsername()+" at "+m.getTimestamp());
                 })
-                .flatMap(m -> m.removeSelfReaction(MigrateCommand.MIGRATED_EMOJI));
+                .concatMap(m -> writes.schedule(Routes.REACTION_DELETE_OWN, m.getChannelId(),
+                                m.removeSelfReaction(MigrateCommand.MIGRATED_EMOJI))
+                        .doOnSuccess(v -> writes.getMetrics().reactionRemoved())
+                        .thenReturn(m));
     }
 
     private Snowflake getChannelStartDate(Snowflake chanId) {
@@ -82,13 +124,4 @@ public class CleanCommand extends Command {
                 ? Snowflake.of(this.afterDate)
                 : chanId;
     }
-
-    private Flux<Category> getSelectedCategories() {
-        if (categories != null) {
-            return Flux.fromIterable(categories)
-                    .flatMap(server::getChannelById)
-                    .ofType(Category.class);
-        }
-        return server.getChannels().ofType(Category.class);
-    }
 }
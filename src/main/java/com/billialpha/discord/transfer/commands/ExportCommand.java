@@ -0,0 +1,211 @@
+package com.billialpha.discord.transfer.commands;
+
+import com.billialpha.discord.transfer.Command;
+import com.billialpha.discord.transfer.Parameters;
+import com.billialpha.discord.transfer.VirtualThreads;
+import com.billialpha.discord.transfer.migration.Archive;
+import com.billialpha.discord.transfer.migration.AttachmentCache;
+import com.billialpha.discord.transfer.migration.AttachmentDownloader;
+import com.billialpha.discord.transfer.migration.CachedAttachment;
+import com.billialpha.discord.transfer.migration.ChannelSelector;
+import com.billialpha.discord.transfer.migration.InFlightBudget;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.channel.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+
+public class ExportCommand extends Command {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExportCommand.class);
+
+    public static final Description DESCRIPTION = new Description(
+            "export",
+            "Exports the messages of a server to a local archive",
+            Connection.REST,
+            Parameters.create()
+                    .withArgument("source",
+                            "The server to export messages from", Snowflake::of)
+                    .withOption("output", "o",
+                            "Archive directory, defaults to export-<source>", Path::of)
+                    .withArrayOption("category", "c",
+                            "Limit the export to specific categories", Snowflake::of)
+                    .withArrayOption("skip-channel", "s",
+                            "Ignore this channel during export", Snowflake::of)
+                    .withArrayOption("include-channel", "i",
+                            "Include this channel during export", Snowflake::of)
+                    .withOption("after", "a",
+                            "Only export messages after the given date", Instant::parse)
+                    .withOption("block-size", null,
+                            "Number of messages in each compressed block of the archive", Integer::parseUnsignedInt, 1000)
+                    .withOption("download-concurrency", null,
+                            "Maximum number of attachments downloaded at the same time", Integer::parseUnsignedInt, 8)
+                    .withOption("cache-dir", null,
+                            "Directory in which downloaded attachments are cached", Path::of, Path.of("attachments-cache"))
+                    .withOption("cache-size", null,
+                            "Maximum size of the attachment cache, in megabytes", Long::parseUnsignedLong, 2048L)
+                    .withOption("fetch-ahead", null,
+                            "Number of source messages fetched ahead of the ones being written, per channel",
+                            Integer::parseUnsignedInt, 500)
+                    .withFlag("no-attachments", null, "Do not store attachment files in the archive")
+                    .build(),
+            ExportCommand::new
+    );
+
+    private final GatewayDiscordClient client;
+    private final Guild srcGuild;
+    private final ChannelSelector selector;
+    private final Archive archive;
+    private final Instant afterDate;
+    private final int blockSize;
+    private final int fetchAhead;
+    private final int downloadConcurrency;
+    private final AttachmentDownloader downloader;
+    private final ObjectMapper mapper;
+    private final Scheduler scheduler;
+    private final Scheduler ioScheduler;
+
+    public ExportCommand(Invocation params) {
+        this.client = params.client;
+        this.afterDate = params.get("after");
+        this.blockSize = Math.max(1, params.<Integer>get("block-size"));
+        this.fetchAhead = Math.max(1, params.<Integer>get("fetch-ahead"));
+        this.downloadConcurrency = Math.max(1, params.<Integer>get("download-concurrency"));
+        this.mapper = client.getRestClient().getRestResources().getJacksonResources().getObjectMapper();
+        if (params.hasFlag("virtual-threads")) {
+            this.scheduler = VirtualThreads.newScheduler("export");
+            this.ioScheduler = scheduler;
+        } else {
+            this.scheduler = Schedulers.parallel();
+            this.ioScheduler = Schedulers.boundedElastic();
+        }
+
+        Snowflake srcGuildId = params.get("source");
+        try {
+            this.srcGuild = params.client.getGuildById(srcGuildId).blockOptional().orElseThrow();
+            LOGGER.info("Loaded source guild: "+srcGuild.getName()+" ("+srcGuildId.asString()+")");
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Invalid source guild: "+srcGuildId.asString(), ex);
+        }
+        this.selector = new ChannelSelector(srcGuild,
+                new HashSet<>(params.getList("category")),
+                new HashSet<>(params.getList("include-channel")),
+                new HashSet<>(params.getList("skip-channel")));
+
+        Path output = params.get("output", Path.of("export-"+srcGuildId.asString()));
+        try {
+            this.archive = Archive.open(output);
+            LOGGER.info("Exporting to archive: "+output);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to open archive: "+output, ex);
+        }
+
+        Path cacheDir = params.get("cache-dir");
+        try {
+            this.downloader = params.hasFlag("no-attachments") ? null : new AttachmentDownloader(downloadConcurrency,
+                    AttachmentCache.open(cacheDir, params.<Long>get("cache-size") * 1024 * 1024),
+                    params.writes.getMetrics(), InFlightBudget.unbounded(), ioScheduler);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to open attachment cache: "+cacheDir, ex);
+        }
+    }
+
+    @Override
+    public void execute() {
+        LOGGER.info("Starting export ...");
+        long exportedMessages = selector.getSelectedTextChannels()
+                .parallel()
+                .runOn(scheduler)
+                .flatMap(c -> exportTextChannel(c)
+                        .onErrorResume(err -> {
+                            LOGGER.warn("Error in text channel export (" + c.getName() + "):", err);
+                            return Mono.empty();
+                        }))
+                .reduce(Long::sum)
+                .blockOptional()
+                .orElse(0L);
+        LOGGER.info("Exported "+exportedMessages+" messages");
+
+        client.logout().block();
+        LOGGER.debug("Logged out");
+    }
+
+    /**
+     * Stream the messages of a channel to its archive segment.
+     * <p>
+     *     Messages are fetched ahead and their attachments downloaded concurrently, then written one at a time,
+     *     in order, outside the event loops. Only a bounded number of messages is held in memory.
+     * </p>
+     * @param srcChan The channel to export.
+     * @return The number of exported messages.
+     */
+    private Mono<Long> exportTextChannel(@NonNull TextChannel srcChan) {
+        LOGGER.info("Exporting channel: "+srcChan.getName()+" ("+srcChan.getId().asString()+")");
+        return Mono.fromCallable(() -> archive.getLastMessage(srcChan.getId()))
+                .subscribeOn(ioScheduler)
+                .flatMap(lastArchived -> Mono.using(
+                        () -> archive.openSegment(srcChan.getId(), srcChan.getName(), blockSize),
+                        segment -> srcChan.getMessagesAfter(getChannelStartDate(srcChan.getId(), lastArchived))
+                                .publishOn(scheduler, fetchAhead)
+                                .flatMapSequential(m -> downloader == null
+                                        ? Mono.just(new ExportedMessage(m, List.of()))
+                                        : downloader.downloadAll(m.getAttachments())
+                                                .map(atts -> new ExportedMessage(m, atts)),
+                                        downloadConcurrency)
+                                .publishOn(ioScheduler, downloadConcurrency)
+                                .doOnNext(m -> write(segment, m))
+                                .doOnDiscard(ExportedMessage.class, ExportedMessage::close)
+                                .count(),
+                        segment -> {
+                            try {
+                                segment.close();
+                            } catch (IOException ex) {
+                                LOGGER.warn("Unable to close archive segment of channel: "+srcChan.getName(), ex);
+                            }
+                        }));
+    }
+
+    private void write(Archive.SegmentWriter segment, ExportedMessage m) {
+        try (m) {
+            LOGGER.debug("Exporting message ("+m.message.getChannelId().asString()+"/"
+                    +m.message.getId().asString()+")");
+            segment.writeMessage(m.message.getId(), mapper.writeValueAsBytes(m.message.getData()));
+            for (CachedAttachment att : m.attachments) {
+                segment.writeAttachment(att.id(), att.filename(), att.path());
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Unable to write to archive", ex);
+        }
+    }
+
+    private Snowflake getChannelStartDate(Snowflake chanId, Optional<Snowflake> lastArchived) {
+        Snowflake start = chanId;
+        if (this.afterDate != null && this.afterDate.isAfter(chanId.getTimestamp()))
+            start = Snowflake.of(this.afterDate);
+        // Messages already in the archive are not exported again
+        if (lastArchived.isPresent() && lastArchived.get().compareTo(start) > 0)
+            start = lastArchived.get();
+        return start;
+    }
+
+    private record ExportedMessage(Message message, List<CachedAttachment> attachments) implements AutoCloseable {
+        @Override
+        public void close() {
+            AttachmentDownloader.release(attachments);
+        }
+    }
+}
@@ -14,7 +14,7 @@ public class HelpCommand extends Command {
     public static final Description DESCRIPTION = new Description(
             "help",
             "Shows an help message",
-            false,
+            Connection.NONE,
             Parameters.create()
                     .withOptionalArgument("command", "The command to get help on", Function.identity())
                     .build(),
@@ -0,0 +1,378 @@
+package com.billialpha.discord.transfer.commands;
+
+import com.billialpha.discord.transfer.Command;
+import com.billialpha.discord.transfer.Parameters;
+import com.billialpha.discord.transfer.VirtualThreads;
+import com.billialpha.discord.transfer.migration.AttachmentCache;
+import com.billialpha.discord.transfer.migration.AttachmentDownloader;
+import com.billialpha.discord.transfer.migration.CachedAttachment;
+import com.billialpha.discord.transfer.migration.ChatExportReader;
+import com.billialpha.discord.transfer.migration.ContentRewriter;
+import com.billialpha.discord.transfer.migration.InFlightBudget;
+import com.billialpha.discord.transfer.migration.MessageLayout;
+import com.billialpha.discord.transfer.migration.MessageWriter;
+import com.billialpha.discord.transfer.migration.MigrationJournal;
+import com.billialpha.discord.transfer.migration.PreparedMessage;
+import com.billialpha.discord.transfer.migration.StructurePlanner;
+import com.billialpha.discord.transfer.migration.WriteScheduler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.channel.TextChannel;
+import discord4j.core.spec.EmbedCreateSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ImportCommand extends Command {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportCommand.class);
+
+    public static final Description DESCRIPTION = new Description(
+            "import",
+            "Imports messages from JSON channel dumps (DiscordChatExporter format) to a server",
+            Connection.REST,
+            Parameters.create()
+                    .withArgument("destination",
+                            "The server to copy messages to", Snowflake::of)
+                    .withVariableArgument("dump",
+                            "The JSON channel dumps to import", Path::of)
+                    .withOption("channel", null,
+                            "Post all messages in this channel, instead of a channel named after the dumped one",
+                            Snowflake::of)
+                    .withOption("delay", "d",
+                            "Minimum pause between two messages posted in a channel", Integer::parseUnsignedInt, 0)
+                    .withOption("download-concurrency", null,
+                            "Maximum number of attachments downloaded at the same time", Integer::parseUnsignedInt, 8)
+                    .withOption("cache-dir", null,
+                            "Directory in which downloaded attachments are cached", Path::of, Path.of("attachments-cache"))
+                    .withOption("cache-size", null,
+                            "Maximum size of the attachment cache, in megabytes", Long::parseUnsignedLong, 2048L)
+                    .withOption("fetch-ahead", null,
+                            "Number of dump messages read ahead of the ones being posted, per dump",
+                            Integer::parseUnsignedInt, 500)
+                    .withOption("message-concurrency", null,
+                            "Number of messages of a dump prepared at the same time", Integer::parseUnsignedInt, 8)
+                    .withOption("journal", "j",
+                            "File recording import progress, defaults to import-<destination>.journal",
+                            Path::of)
+                    .withFlag("no-bot", null,"Do not copy bot messages")
+                    .withFlag("no-reupload", null, "Do not re-upload attachments")
+                    .build(),
+            ImportCommand::new
+    );
+
+    private final GatewayDiscordClient client;
+    private final WriteScheduler writes;
+    private final MessageWriter messageWriter;
+    private final Guild destGuild;
+    private final List<Path> dumps;
+    private final Snowflake channelId;
+    private final AttachmentDownloader downloader;
+    private final boolean noBotMessages;
+    private final int downloadConcurrency;
+    private final int fetchAhead;
+    private final int messageConcurrency;
+    private final MigrationJournal journal;
+    private final ContentRewriter rewriter;
+    private final ObjectMapper mapper;
+    private final Scheduler scheduler;
+    private final Scheduler ioScheduler;
+
+    public ImportCommand(Invocation params) {
+        this.client = params.client;
+        this.writes = params.writes;
+        this.writes.setMinInterval(Duration.ofMillis(params.<Integer>get("delay")));
+        this.messageWriter = new MessageWriter(writes);
+        this.dumps = params.getList("dump");
+        if (dumps == null || dumps.isEmpty()) throw new IllegalArgumentException("Missing dump file");
+        this.channelId = params.get("channel");
+        this.noBotMessages = params.hasFlag("no-bot");
+        this.downloadConcurrency = Math.max(1, params.<Integer>get("download-concurrency"));
+        this.fetchAhead = Math.max(1, params.<Integer>get("fetch-ahead"));
+        this.messageConcurrency = Math.max(1, params.<Integer>get("message-concurrency"));
+        this.mapper = client.getRestClient().getRestResources().getJacksonResources().getObjectMapper();
+        if (params.hasFlag("virtual-threads")) {
+            this.scheduler = VirtualThreads.newScheduler("import");
+            this.ioScheduler = scheduler;
+        } else {
+            this.scheduler = Schedulers.parallel();
+            this.ioScheduler = Schedulers.boundedElastic();
+        }
+
+        Path cacheDir = params.get("cache-dir");
+        try {
+            this.downloader = params.hasFlag("no-reupload") ? null : new AttachmentDownloader(downloadConcurrency,
+                    AttachmentCache.open(cacheDir, params.<Long>get("cache-size") * 1024 * 1024),
+                    params.writes.getMetrics(), InFlightBudget.unbounded(), ioScheduler);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to open attachment cache: "+cacheDir, ex);
+        }
+
+        Snowflake dstGuildId = params.get("destination");
+        try {
+            this.destGuild = params.client.getGuildById(dstGuildId).blockOptional().orElseThrow();
+            LOGGER.info("Loaded destination guild: "+destGuild.getName()+" ("+dstGuildId.asString()+")");
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Invalid destination guild: "+dstGuildId.asString(), ex);
+        }
+
+        Path journalPath = params.get("journal", Path.of("import-"+dstGuildId.asString()+".journal"));
+        try {
+            this.journal = MigrationJournal.open(journalPath);
+            LOGGER.info("Using import journal: "+journalPath);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to open import journal: "+journalPath, ex);
+        }
+        // Dumps do not tell their guild nor its roles, role mentions cannot be mapped and are removed
+        this.rewriter = new ContentRewriter(null, dstGuildId, Map.of(), Map.of(), journal);
+    }
+
+    @Override
+    public void execute() {
+        try {
+            LOGGER.info("Starting import ...");
+            StructurePlanner planner = StructurePlanner.snapshot(destGuild, writes).block();
+            // Dumps posted in the same channel are imported one after the other, in the given order
+            long importedMessages = Flux.fromIterable(dumps)
+                    .concatMap(dump -> resolveDump(dump, planner)
+                            .onErrorResume(err -> {
+                                LOGGER.warn("Error in dump import (" + dump + "):", err);
+                                return Mono.empty();
+                            }))
+                    .collect(() -> new LinkedHashMap<Snowflake, List<DumpTarget>>(), (groups, target) -> groups
+                            .computeIfAbsent(target.channel().getId(), id -> new ArrayList<>())
+                            .add(target))
+                    .flatMapMany(groups -> Flux.fromIterable(groups.values()))
+                    .parallel()
+                    .runOn(scheduler)
+                    .flatMap(group -> Flux.fromIterable(group)
+                            .concatMap(target -> importDump(target.dump(), target.channel())
+                                    .onErrorResume(err -> {
+                                        LOGGER.warn("Error in dump import (" + target.dump() + "):", err);
+                                        return Mono.empty();
+                                    })))
+                    .reduce(Long::sum)
+                    .blockOptional()
+                    .orElse(0L);
+            if (importedMessages > 0) {
+                LOGGER.info("Successfully imported "+importedMessages+" messages");
+            } else {
+                LOGGER.info("No message imported");
+            }
+        } finally {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to close import journal", ex);
+            }
+        }
+
+        client.logout().block();
+        LOGGER.debug("Logged out");
+    }
+
+    /**
+     * Find the channel the messages of a dump are posted in, only the header of the dump is read.
+     * @param dump The dump file.
+     * @param planner The destination guild structure, used to find the channel to post in.
+     * @return The dump and its destination channel.
+     */
+    private Mono<DumpTarget> resolveDump(Path dump, StructurePlanner planner) {
+        return Mono.using(
+                () -> ChatExportReader.open(dump, mapper),
+                reader -> getDestinationChannel(reader, planner).map(dstChan -> new DumpTarget(dump, dstChan)),
+                reader -> closeDump(reader, dump));
+    }
+
+    /**
+     * Import the messages of a dump.
+     * <p>
+     *     Messages are read ahead from the dump and prepared concurrently, then posted one at a time, in order,
+     *     like migrated messages. Messages recorded in the journal are skipped.
+     * </p>
+     * @param dump The dump file.
+     * @param dstChan The channel to post the messages in.
+     * @return The number of imported messages.
+     */
+    private Mono<Long> importDump(Path dump, TextChannel dstChan) {
+        return Mono.using(
+                () -> ChatExportReader.open(dump, mapper),
+                reader -> Mono.defer(() -> {
+                    Snowflake srcChanId = reader.getChannel() != null ? reader.getChannel().id() : dstChan.getId();
+                    Snowflake watermarkKey = getWatermarkKey(reader, dump);
+                    LOGGER.info("Importing dump "+dump+" in channel: "+dstChan.getName());
+                    Snowflake watermark = journal.getWatermark(watermarkKey).orElse(null);
+                    AtomicReference<Snowflake> lastSeen = new AtomicReference<>();
+                    AtomicBoolean failed = new AtomicBoolean(false);
+                    return reader.messages()
+                            .subscribeOn(ioScheduler)
+                            .doOnNext(m -> lastSeen.set(m.id()))
+                            .publishOn(scheduler, fetchAhead)
+                            .filter(m -> watermark == null || m.id().compareTo(watermark) > 0)
+                            .filter(m -> !journal.isMigrated(m.id()))
+                            .flatMapSequential(m -> prepareMessage(m, srcChanId, reader.getDirectory())
+                                    .onErrorResume(err -> {
+                                        failed.set(true);
+                                        LOGGER.warn("Error in message preparation ("
+                                                +srcChanId.asString()+"/"+m.id().asString()+")", err);
+                                        return Mono.empty();
+                                    }), messageConcurrency)
+                            .concatMap(m -> messageWriter.post(rewriter.rewrite(m), journal, dstChan)
+                                    .doFinally(s -> m.close())
+                                    .onErrorResume(err -> {
+                                        failed.set(true);
+                                        LOGGER.warn("Error in message import ("
+                                                +m.channelId().asString()+"/"+m.id().asString()+")", err);
+                                        return Mono.empty();
+                                    }))
+                            .doOnDiscard(PreparedMessage.class, PreparedMessage::close)
+                            .count()
+                            .doOnNext(count -> {
+                                if (!failed.get() && lastSeen.get() != null)
+                                    journal.recordWatermark(watermarkKey, lastSeen.get());
+                            });
+                }),
+                reader -> closeDump(reader, dump));
+    }
+
+    private static void closeDump(ChatExportReader reader, Path dump) {
+        try {
+            reader.close();
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to close dump: "+dump, ex);
+        }
+    }
+
+    /**
+     * The journal key of the watermark of a dump: the dumped channel, or a hash of the dump path when the dump does
+     * not tell its channel, so that such dumps posted in the same channel do not share a watermark.
+     */
+    private static Snowflake getWatermarkKey(ChatExportReader reader, Path dump) {
+        if (reader.getChannel() != null) return reader.getChannel().id();
+        UUID hash = UUID.nameUUIDFromBytes(
+                dump.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+        return Snowflake.of(hash.getMostSignificantBits() & Long.MAX_VALUE);
+    }
+
+    private Mono<TextChannel> getDestinationChannel(ChatExportReader reader, StructurePlanner planner) {
+        if (channelId != null) {
+            return client.getChannelById(channelId)
+                    .ofType(TextChannel.class)
+                    .switchIfEmpty(Mono.error(() -> new IllegalArgumentException(
+                            "Invalid destination channel: "+channelId.asString())));
+        }
+        ChatExportReader.ExportedChannel channel = reader.getChannel();
+        if (channel == null) return Mono.error(new IllegalArgumentException(
+                "Dump has no channel information, use the channel option"));
+        return planner.resolveTextChannel(channel.category(), channel.name(), channel.topic());
+    }
+
+    /**
+     * Convert a dumped message for the destination guild, with the same layout as migrated messages.
+     * @param msg The dumped message.
+     * @param srcChanId The ID of the dumped channel.
+     * @param dumpDir The directory of the dump, against which local attachments are resolved.
+     * @return The prepared message, or empty if this message should not be imported.
+     */
+    private Mono<PreparedMessage> prepareMessage(
+            @NonNull ChatExportReader.ExportedMessage msg, Snowflake srcChanId, Path dumpDir
+    ) {
+        String logId = srcChanId.asString()+"/"+msg.id().asString();
+        if (!msg.type().equals("Default") && !msg.type().equals("Reply")) {
+            LOGGER.info("Skipping message ("+logId+"), unknown type: "+msg.type());
+            return Mono.empty(); // Not a user message, do not import
+        }
+        if (this.noBotMessages && msg.authorBot()) {
+            LOGGER.debug("Skipping message ("+logId+"), not importing bot messages");
+            return Mono.empty(); // Bot message, do not import
+        }
+
+        Mono<List<CachedAttachment>> files = Mono.just(List.of());
+        List<MessageLayout.LinkedAttachment> links = new ArrayList<>();
+        if (downloader != null) {
+            // Download files, or use the files downloaded with the dump, they are re-uploaded with the message
+            files = Flux.fromIterable(msg.attachments())
+                    .flatMapSequential(att -> isRemote(att.url())
+                            ? downloader.download(att.id(), att.filename(), att.url())
+                            : localAttachment(att, dumpDir), downloadConcurrency)
+                    .collectList();
+        } else {
+            // Just link to the original files
+            for (ChatExportReader.ExportedAttachment att : msg.attachments()) {
+                if (!isRemote(att.url())) continue;
+                links.add(new MessageLayout.LinkedAttachment(att.filename(), att.url(), att.image()));
+            }
+        }
+
+        List<EmbedCreateSpec> embeds = MessageLayout.build(msg.authorName(), msg.authorAvatarUrl(),
+                msg.editedTimestamp() != null ? msg.editedTimestamp() : msg.timestamp(), msg.content(), links,
+                msg.embeds());
+        return files.map(atts -> new PreparedMessage(srcChanId, msg.id(), List.of(), msg.replyTo(),
+                msg.authorName(), msg.authorAvatarUrl(), msg.timestamp(), null, embeds, atts));
+    }
+
+    /**
+     * Resolve an attachment file downloaded with the dump.
+     * <p>
+     *     DiscordChatExporter writes the path of the file relative to the dump, percent-encoded. Paths leading out of
+     *     the dump directory are rejected, a dump must not be able to upload any other local file.
+     * </p>
+     */
+    private Mono<CachedAttachment> localAttachment(ChatExportReader.ExportedAttachment att, Path dumpDir) {
+        Path root = dumpDir.toAbsolutePath().normalize();
+        Path file;
+        try {
+            file = root.resolve(decodePath(att.url())).normalize();
+        } catch (InvalidPathException ex) {
+            LOGGER.warn("Invalid attachment path: "+att.url());
+            return Mono.empty();
+        }
+        if (!file.startsWith(root)) {
+            LOGGER.warn("Attachment outside of the dump directory, ignored: "+att.url());
+            return Mono.empty();
+        }
+        if (!Files.isRegularFile(file)) {
+            LOGGER.warn("Missing attachment file: "+file);
+            return Mono.empty();
+        }
+        return Mono.just(downloader.local(att.id(), att.filename(), file));
+    }
+
+    /**
+     * Decode the percent-encoded characters of a path, a plus sign is kept as is.
+     */
+    private static String decodePath(String path) {
+        try {
+            return URLDecoder.decode(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            // Not encoded
+            return path;
+        }
+    }
+
+    private static boolean isRemote(String url) {
+        return url.startsWith("https://") || url.startsWith("http://");
+    }
+
+    private record DumpTarget(Path dump, TextChannel channel) {}
+}
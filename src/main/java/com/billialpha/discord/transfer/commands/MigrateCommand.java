@@ -1,27 +1,45 @@
 package com.billialpha.discord.transfer.commands;
 
 import com.billialpha.discord.transfer.Command;
-import com.billialpha.discord.transfer.DiscordTransfer;
 import com.billialpha.discord.transfer.Parameters;
+import com.billialpha.discord.transfer.VirtualThreads;
+import com.billialpha.discord.transfer.migration.AttachmentCache;
+import com.billialpha.discord.transfer.migration.AttachmentDownloader;
+import com.billialpha.discord.transfer.migration.CachedAttachment;
+import com.billialpha.discord.transfer.migration.ChannelScheduler;
+import com.billialpha.discord.transfer.migration.ChannelSelector;
+import com.billialpha.discord.transfer.migration.ContentRewriter;
+import com.billialpha.discord.transfer.migration.InFlightBudget;
+import com.billialpha.discord.transfer.migration.MessageLayout;
+import com.billialpha.discord.transfer.migration.MessagePacker;
+import com.billialpha.discord.transfer.migration.MessageWriter;
+import com.billialpha.discord.transfer.migration.MigrationEstimator;
+import com.billialpha.discord.transfer.migration.MigrationJournal;
+import com.billialpha.discord.transfer.migration.PreparedMessage;
+import com.billialpha.discord.transfer.migration.StructurePlanner;
+import com.billialpha.discord.transfer.migration.ThreadDirectory;
+import com.billialpha.discord.transfer.migration.WebhookPool;
+import com.billialpha.discord.transfer.migration.WriteScheduler;
 import discord4j.common.util.Snowflake;
 import discord4j.core.GatewayDiscordClient;
 import discord4j.core.object.Embed;
+import discord4j.core.object.MessageReference;
 import discord4j.core.object.entity.Attachment;
 import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.Role;
 import discord4j.core.object.entity.User;
 import discord4j.core.object.entity.channel.Category;
+import discord4j.core.object.entity.channel.GuildChannel;
 import discord4j.core.object.entity.channel.TextChannel;
 import discord4j.core.object.entity.channel.VoiceChannel;
 import discord4j.core.object.reaction.Reaction;
 import discord4j.core.object.reaction.ReactionEmoji;
 import discord4j.core.spec.EmbedCreateFields;
 import discord4j.core.spec.EmbedCreateSpec;
-import discord4j.core.spec.MessageCreateSpec;
-import discord4j.core.spec.TextChannelCreateSpec;
-import discord4j.core.spec.VoiceChannelCreateSpec;
+import discord4j.discordjson.json.ChannelData;
 import discord4j.discordjson.json.UserData;
-import discord4j.discordjson.possible.Possible;
+import discord4j.rest.route.Routes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Flux;
@@ -30,33 +48,37 @@ import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 import reactor.util.annotation.NonNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MigrateCommand extends Command {
     private static final Logger LOGGER = LoggerFactory.getLogger(MigrateCommand.class);
 
-    public static final ReactionEmoji MIGRATED_EMOJI = ReactionEmoji.unicode("\uD83D\uDD04");
+    private static final String MIGRATED_EMOJI_RAW = "\uD83D\uDD04";
+    public static final ReactionEmoji MIGRATED_EMOJI = ReactionEmoji.unicode(MIGRATED_EMOJI_RAW);
     public static final Description DESCRIPTION = new Description(
             "migrate",
-            "Migrates messages from one server to another",
-            true,
+            "Migrates messages from one server to one or more other servers",
+            Connection.REST,
             Parameters.create()
                     .withArgument("source",
                             "The server to copy messages from", Snowflake::of)
-                    .withArgument("destination",
-                            "The server to copy messages to", Snowflake::of)
+                    .withVariableArgument("destination",
+                            "The servers to copy messages to", Snowflake::of)
                     .withArrayOption("category", "c",
                             "Limit the migration to specific categories", Snowflake::of)
                     .withArrayOption("skip-channel", "s",
@@ -66,40 +88,129 @@ public class MigrateCommand extends Command {
                     .withOption("after", "a",
                             "Only migrate messages after the given date", Instant::parse)
                     .withOption("delay", "d",
-                            "Pause between each message posted", Integer::parseUnsignedInt, 0)
+                            "Minimum pause between two messages posted in a channel", Integer::parseUnsignedInt, 0)
+                    .withOption("download-concurrency", null,
+                            "Maximum number of attachments downloaded at the same time", Integer::parseUnsignedInt, 8)
+                    .withOption("cache-dir", null,
+                            "Directory in which downloaded attachments are cached", Path::of, Path.of("attachments-cache"))
+                    .withOption("cache-size", null,
+                            "Maximum size of the attachment cache, in megabytes", Long::parseUnsignedLong, 2048L)
+                    .withOption("fetch-ahead", null,
+                            "Number of source messages fetched ahead of the ones being posted, per channel",
+                            Integer::parseUnsignedInt, 500)
+                    .withOption("fetch-slices", null,
+                            "Number of time slices of a channel history fetched at the same time",
+                            Integer::parseUnsignedInt, 1)
+                    .withOption("channel-concurrency", null,
+                            "Number of channels migrated at the same time, the largest ones first",
+                            Integer::parseUnsignedInt, 4)
+                    .withOption("message-concurrency", null,
+                            "Number of messages of a channel prepared at the same time", Integer::parseUnsignedInt, 8)
+                    .withOption("in-flight-messages", null,
+                            "Maximum number of source messages fetched but not posted yet, across all channels",
+                            Integer::parseUnsignedInt, 5000)
+                    .withOption("in-flight-size", null,
+                            "Maximum size of the attachments downloaded but not uploaded yet, in megabytes",
+                            Long::parseUnsignedLong, 512L)
+                    .withOption("destination-buffer", null,
+                            "Number of prepared messages buffered for each destination, when migrating to many servers",
+                            Integer::parseUnsignedInt, 100)
+                    .withArrayOption("journal", "j",
+                            "File recording migration progress, one per destination in the same order,"
+                                    +" defaults to migration-<source>-<destination>.journal",
+                            Path::of)
+                    .withFlag("dry-run", null, "Only estimate the size and duration of the migration, without writing")
                     .withFlag("text-only", null,"Only migrate text channels")
+                    .withFlag("no-threads", null, "Do not migrate threads and forum channels")
+                    .withOption("thread-concurrency", null,
+                            "Number of threads migrated at the same time, and of channels whose archived threads"
+                                    +" are listed at the same time",
+                            Integer::parseUnsignedInt, 4)
                     .withFlag("no-bot", null,"Do not copy bot messages")
                     .withFlag("no-reupload", null, "Do not re-upload attachments")
+                    .withFlag("no-reaction", null, "Do not mark migrated messages with a reaction")
+                    .withFlag("webhook", "w", "Post messages through webhooks, under the name of their author")
+                    .withOption("webhook-pool", null,
+                            "Number of webhooks used to post in each channel, in webhook mode",
+                            Integer::parseUnsignedInt, 3)
+                    .withFlag("pack", "p", "Post consecutive small messages together, in a single message")
+                    .withOption("pack-window", null,
+                            "Maximum delay, in seconds, between two messages of an author merged in a single embed",
+                            Integer::parseUnsignedInt, 300)
                     .build(),
             MigrateCommand::new
     );
 
-    private final GatewayDiscordClient client;
+    protected final GatewayDiscordClient client;
+    private final WriteScheduler writes;
+    private final MessageWriter messageWriter;
+    private final boolean useWebhooks;
+    private final MessagePacker packer;
+    private final MigrationEstimator estimator;
     private final Guild srcGuild;
-    private final Guild destGuild;
-    private final Set<Snowflake> skipChannels;
-    private final Set<Snowflake> includeChannels;
-    private final Set<Snowflake> categories;
+    private final List<Destination> destinations;
+    private final ChannelSelector selector;
     private final Instant afterDate;
-    private final int delay;
     private final boolean reUploadFiles;
+    private final AttachmentDownloader downloader;
+    private final InFlightBudget budget;
     private final boolean noBotMessages;
     private final boolean textOnly;
+    private final ThreadDirectory threads;
+    private final int threadConcurrency;
+    private final ChannelScheduler channelScheduler;
+    private final ChannelScheduler threadScheduler;
+    private final boolean markMigrated;
+    private final int fetchAhead;
+    private final int fetchSlices;
+    private final int messageConcurrency;
+    private final int destinationBuffer;
     private final int verbosity;
     private final Scheduler scheduler;
 
     public MigrateCommand(Invocation params) {
         this.client = params.client;
-        this.skipChannels = new HashSet<>(params.getList("skip-channel"));
-        this.includeChannels = new HashSet<>(params.getList("include-channel"));
-        this.categories = new HashSet<>(params.getList("category"));
         this.afterDate = params.get("after");
-        this.delay = params.get("delay");
+        this.writes = params.writes;
+        this.packer = !params.hasFlag("pack") ? null
+                : new MessagePacker(Duration.ofSeconds(params.<Integer>get("pack-window")));
+        this.useWebhooks = params.hasFlag("webhook");
+        this.messageWriter = new MessageWriter(writes, !useWebhooks ? null
+                : new WebhookPool(writes, Math.min(10, Math.max(1, params.<Integer>get("webhook-pool")))));
+        this.writes.setMinInterval(Duration.ofMillis(params.<Integer>get("delay")));
         this.reUploadFiles = !params.hasFlag("no-reupload");
+        this.markMigrated = !params.hasFlag("no-reaction");
+        this.estimator = !params.hasFlag("dry-run") ? null : new MigrationEstimator(
+                Duration.ofMillis(params.<Integer>get("delay")),
+                packer,
+                useWebhooks ? Math.min(10, Math.max(1, params.<Integer>get("webhook-pool"))) : 0,
+                reUploadFiles, markMigrated, params.getList("destination").size());
+        this.scheduler = params.hasFlag("virtual-threads") ? VirtualThreads.newScheduler("migrate")
+                : Schedulers.parallel();
+        this.budget = new InFlightBudget(params.get("in-flight-messages"),
+                params.<Long>get("in-flight-size") * 1024 * 1024);
+        Path cacheDir = params.get("cache-dir");
+        try {
+            // A dry run does not download attachments, nor create the cache directory
+            this.downloader = !reUploadFiles || estimator != null ? null : new AttachmentDownloader(
+                    Math.max(1, params.<Integer>get("download-concurrency")),
+                    AttachmentCache.open(cacheDir, params.<Long>get("cache-size") * 1024 * 1024),
+                    params.writes.getMetrics(), budget,
+                    params.hasFlag("virtual-threads") ? scheduler : Schedulers.boundedElastic());
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to open attachment cache: "+cacheDir, ex);
+        }
         this.verbosity = params.get("verbose");
-        this.scheduler = Schedulers.parallel();
         this.noBotMessages = params.hasFlag("no-bot");
         this.textOnly = params.hasFlag("text-only");
+        this.threads = params.hasFlag("no-threads") ? null : new ThreadDirectory(client, writes);
+        this.threadConcurrency = Math.max(1, params.<Integer>get("thread-concurrency"));
+        this.channelScheduler = new ChannelScheduler(params.get("channel-concurrency"));
+        this.threadScheduler = new ChannelScheduler(threadConcurrency);
+        this.fetchAhead = Math.max(1, params.<Integer>get("fetch-ahead"));
+        this.fetchSlices = Math.max(1, params.<Integer>get("fetch-slices"));
+        this.messageConcurrency = Math.max(1, params.<Integer>get("message-concurrency"));
+        this.destinationBuffer = Math.max(1, params.<Integer>get("destination-buffer"));
 
         Snowflake srcGuildId = params.get("source");
         try {
@@ -108,130 +219,493 @@ public class MigrateCommand extends Command {
         } catch (Exception ex) {
             throw new IllegalArgumentException("Invalid source guild: "+srcGuildId.asString(), ex);
         }
+        this.selector = new ChannelSelector(srcGuild,
+                new HashSet<>(params.getList("category")),
+                new HashSet<>(params.getList("include-channel")),
+                new HashSet<>(params.getList("skip-channel")));
 
-        Snowflake dstGuildId = params.get("destination");
-        try {
-            this.destGuild = params.client.getGuildById(dstGuildId).blockOptional().orElseThrow();
-            LOGGER.info("Loaded destination guild: "+destGuild.getName()+" ("+dstGuildId.asString()+")");
-        } catch (Exception ex) {
-            throw new IllegalArgumentException("Invalid destination guild: "+dstGuildId.asString(), ex);
+        List<Snowflake> dstGuildIds = params.getList("destination");
+        List<Path> journalPaths = params.getList("journal");
+        if (dstGuildIds == null || dstGuildIds.isEmpty())
+            throw new IllegalArgumentException("Missing destination guild");
+        this.destinations = new ArrayList<>();
+        for (int i = 0; i < dstGuildIds.size(); i++) {
+            Snowflake dstGuildId = dstGuildIds.get(i);
+            Guild destGuild;
+            try {
+                destGuild = params.client.getGuildById(dstGuildId).blockOptional().orElseThrow();
+                LOGGER.info("Loaded destination guild: "+destGuild.getName()+" ("+dstGuildId.asString()+")");
+            } catch (Exception ex) {
+                throw new IllegalArgumentException("Invalid destination guild: "+dstGuildId.asString(), ex);
+            }
+
+            Path journalPath = journalPaths != null && journalPaths.size() > i ? journalPaths.get(i)
+                    : Path.of("migration-"+srcGuildId.asString()+"-"+dstGuildId.asString()+".journal");
+            try {
+                // A dry run reads the progress of previous runs, but does not create nor write journals
+                destinations.add(new Destination(destGuild, estimator != null
+                        ? MigrationJournal.openReadOnly(journalPath) : MigrationJournal.open(journalPath)));
+                LOGGER.info("Using migration journal: "+journalPath);
+            } catch (Exception ex) {
+                closeJournals();
+                throw new IllegalArgumentException("Unable to open migration journal: "+journalPath, ex);
+            }
         }
     }
 
     @Override
     public void execute() {
-        LOGGER.info("Starting migration ...");
+        try {
+            if (estimator != null) {
+                List<TextChannel> channels = new ArrayList<>(getSelectedTextChannels());
+                if (threads != null) channels.addAll(getSourceThreads(channels, getSelectedForumChannels()));
+                estimate(channels);
+            }
+            else migrate(getSelectedTextChannels());
+        } finally {
+            closeJournals();
+        }
 
-        if (!textOnly) {
-            LOGGER.info("Creating categories and voice channels in destination guild");
-            long migratedVoiceChans = getSelectedCategories()
-                    .parallel()
-                    .runOn(scheduler)
-                    .flatMap(this::migrateCategory)
-                    .reduce(Long::sum)
-                    .blockOptional()
-                    .orElse(0L);
-            if (migratedVoiceChans > 0) {
-                LOGGER.info("Successfully created "+migratedVoiceChans+" voice channels");
-            } else {
-                LOGGER.info("No voice channel created");
+        client.logout().block();
+        LOGGER.debug("Logged out");
+    }
+
+    protected void closeJournals() {
+        for (Destination dest : destinations) {
+            try {
+                dest.journal.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to close migration journal", ex);
             }
         }
+    }
+
+    /**
+     * @return The selected text channels of the source guild.
+     */
+    protected List<TextChannel> getSelectedTextChannels() {
+        return Objects.requireNonNull(selector.getSelectedTextChannels().collectList().block());
+    }
+
+    /**
+     * Create the structure of the source guild in every destination, then migrate the messages of text channels.
+     * @param textChannels The text channels to migrate.
+     */
+    protected void migrate(List<TextChannel> textChannels) {
+        LOGGER.info("Starting migration ...");
+
+        List<Category> selectedCategories = textOnly ? List.of()
+                : Objects.requireNonNull(selector.getSelectedCategories().collectList().block());
+        LOGGER.info("Planning destination guilds structure");
+        Flux.fromIterable(destinations)
+                .flatMap(dest -> StructurePlanner.snapshot(srcGuild, dest.guild, writes)
+                        .flatMap(planner -> {
+                            List<GuildChannel> channels = new ArrayList<>();
+                            // Also create selected categories, even empty ones, and their voice channels
+                            for (Category srcCat : selectedCategories) {
+                                channels.add(srcCat);
+                                planner.getSourceChildren(srcCat).stream()
+                                        .filter(c -> c instanceof VoiceChannel)
+                                        .forEach(channels::add);
+                            }
+                            channels.addAll(textChannels);
+                            return planner.apply(channels);
+                        })
+                        .doOnNext(channelMap -> {
+                            dest.channelMap.putAll(channelMap);
+                            dest.planned = true;
+                        }))
+                .blockLast();
+        // Mentions and links of the source guild are mapped to the structure and roles of each destination
+        Map<Snowflake, String> srcRoles = Objects.requireNonNull(srcGuild.getRoles()
+                .collectMap(Role::getId, Role::getName)
+                .block());
+        Flux.fromIterable(destinations)
+                .flatMap(dest -> dest.guild.getRoles()
+                        .collectMap(Role::getName, Role::getId)
+                        .doOnNext(dstRoles -> {
+                            Map<Snowflake, Snowflake> roles = new HashMap<>();
+                            srcRoles.forEach((id, name) -> {
+                                Snowflake dstRole = dstRoles.get(name);
+                                if (dstRole != null) roles.put(id, dstRole);
+                            });
+                            dest.channelMap.forEach((src, dst) -> dest.channelIds.put(src, dst.getId()));
+                            dest.rewriter = new ContentRewriter(srcGuild.getId(), dest.guild.getId(),
+                                    dest.channelIds, roles, dest.journal);
+                        }))
+                .blockLast();
 
         LOGGER.info("Migrating text channels");
-        long migratedMessages = getSelectedTextChannels()
-                .parallel()
-                .runOn(scheduler)
-                .flatMap(c -> this.migrateTextChannel(c).onErrorContinue((err, x) ->
-                        LOGGER.warn("Error in text channel migration (" + c.getName() + "):", err)))
+        long migratedMessages = channelScheduler.schedule(textChannels, this::getPendingSpan,
+                        c -> migrateTextChannelMessages(c)
+                                .onErrorResume(err -> {
+                                    LOGGER.warn("Error in text channel migration (" + c.getName() + "):", err);
+                                    return Mono.empty();
+                                }))
                 .map(TextChannelMigrationResult::messageCount)
                 .reduce(Long::sum)
                 .blockOptional()
                 .orElse(0L);
+        if (threads != null) migratedMessages += migrateThreads(textChannels);
         if (migratedMessages > 0) {
             LOGGER.info("Successfully migrated "+migratedMessages+" messages");
         } else {
             LOGGER.info("No message migrated");
         }
+    }
 
-        client.logout().block();
-        LOGGER.debug("Logged out");
+    /**
+     * @return The selected forum channels of the source guild.
+     */
+    protected List<ChannelData> getSelectedForumChannels() {
+        if (textOnly) return List.of();
+        return Objects.requireNonNull(selector.getSelectedForumChannels(threads).collectList().block());
     }
 
-    private Mono<Long> migrateCategory(@NonNull Category srcCat) {
-        LOGGER.info("Migrating category: "+srcCat.getName()+" ("+srcCat.getId().asString()+")");
-        return destGuild.getChannels().ofType(Category.class)
-                .filter(c -> c.getName().equals(srcCat.getName()))
-                .singleOrEmpty()
-                .switchIfEmpty(destGuild.createCategory(srcCat.getName()))
-                .flatMapMany(dstCat -> migrateCategoryVoiceChannels(srcCat, dstCat))
-                .reduce(Long::sum);
+    /**
+     * List the public threads, active and archived, of source channels.
+     * @param textChannels The text channels whose threads are listed.
+     * @param forums The forum channels whose threads (posts) are listed.
+     * @return The threads.
+     */
+    private List<TextChannel> getSourceThreads(List<TextChannel> textChannels, List<ChannelData> forums) {
+        List<Snowflake> parents = new ArrayList<>();
+        textChannels.forEach(c -> parents.add(c.getId()));
+        forums.forEach(f -> parents.add(Snowflake.of(f.id())));
+        List<TextChannel> result = Objects.requireNonNull(threads.getThreads(srcGuild.getId(), parents,
+                threadConcurrency).collectList().block());
+        LOGGER.info("Found "+result.size()+" threads in "+parents.size()+" channels");
+        return result;
     }
 
-    private Mono<Long> migrateCategoryVoiceChannels(@NonNull Category srcCat, @NonNull Category dstCat) {
-        return srcCat.getChannels().ofType(VoiceChannel.class)
-                // Filter on non-migrated channels
-                .filterWhen(srcChan -> dstCat.getChannels()
-                        .ofType(VoiceChannel.class)
-                        .filter(c -> c.getName().equals(srcChan.getName()))
-                        .count()
-                        .map(c -> c == 0)
-                )
-                // Actually create channel
-                .flatMap(srcChan -> destGuild.createVoiceChannel(VoiceChannelCreateSpec.builder()
-                        .name(srcChan.getName())
-                        .parentId(dstCat.getId())
-                        .position(srcChan.getRawPosition()).build()))
-                .count();
+    /**
+     * Migrate the threads of the migrated text channels and of the selected forum channels, once their parents exist
+     * in every destination.
+     * <p>
+     *     Threads are migrated concurrently, up to the thread concurrency. Those already migrated up to their last
+     *     message are skipped without a request.
+     * </p>
+     * @param textChannels The migrated text channels.
+     * @return The number of migrated messages.
+     */
+    private long migrateThreads(List<TextChannel> textChannels) {
+        List<ChannelData> forums = getSelectedForumChannels();
+        Flux.fromIterable(destinations)
+                .flatMap(dest -> Flux.fromIterable(forums)
+                        .concatMap(srcForum -> {
+                            Snowflake dstCategory = srcForum.parentId().toOptional().flatMap(p -> p)
+                                    .map(p -> dest.channelMap.get(Snowflake.of(p)))
+                                    .map(GuildChannel::getId)
+                                    .orElse(null);
+                            return threads.resolveForum(dest.guild.getId(), srcForum, dstCategory)
+                                    .doOnNext(dstForum -> {
+                                        dest.forums.add(Snowflake.of(dstForum.id()));
+                                        dest.channelIds.put(Snowflake.of(srcForum.id()), Snowflake.of(dstForum.id()));
+                                    })
+                                    .onErrorResume(err -> {
+                                        LOGGER.warn("Unable to create forum channel "+srcForum.name().get()
+                                                +" in "+dest.guild.getName(), err);
+                                        return Mono.empty();
+                                    });
+                        }))
+                .blockLast();
+
+        List<TextChannel> srcThreads = getSourceThreads(textChannels, forums);
+        if (srcThreads.isEmpty()) return 0;
+        LOGGER.info("Migrating threads");
+        List<TextChannel> pending = srcThreads.stream().filter(srcThread -> !isThreadMigrated(srcThread)).toList();
+        return threadScheduler.schedule(pending, this::getPendingSpan,
+                        srcThread -> Flux.fromIterable(destinations)
+                                .flatMap(dest -> resolveThread(dest, srcThread))
+                                .thenMany(Flux.defer(() -> migrateTextChannelMessages(srcThread)))
+                                .onErrorResume(err -> {
+                                    LOGGER.warn("Error in thread migration ("+srcThread.getName()+"):", err);
+                                    return Mono.empty();
+                                }))
+                .map(TextChannelMigrationResult::messageCount)
+                .reduce(0L, Long::sum)
+                .blockOptional()
+                .orElse(0L);
     }
 
-    private Flux<TextChannelMigrationResult> migrateTextChannel(@NonNull TextChannel srcChan) {
-        return srcChan.getCategory()
-                .flatMapMany(srcCat ->
-                    // Find destination category
-                    destGuild.getChannels()
-                            .ofType(Category.class)
-                            // Filter on name
-                            .filter(cat -> srcCat.getName().equals(cat.getName()))
-                            // Create category if it doesn't exist
-                            .switchIfEmpty(destGuild.createCategory(srcCat.getName()))
-                            .flatMap(dstCat ->
-                                // Find destination channel
-                                dstCat.getChannels()
-                                        .ofType(TextChannel.class)
-                                        // Filter on name
-                                        .filter(c -> c.getName().equals(srcChan.getName()))
-                                        .singleOrEmpty()
-                                        // Create channel if it doesn't exist
-                                        .switchIfEmpty(destGuild.createTextChannel(TextChannelCreateSpec.builder()
-                                                .name(srcChan.getName())
-                                                .topic(srcChan.getTopic().map(Possible::of).orElse(Possible.absent()))
-                                                .nsfw(srcChan.isNsfw())
-                                                .parentId(dstCat.getId())
-                                                .position(srcChan.getRawPosition())
-                                                .build()))
-                            )
-                )
-                // Migrate channel messages
-                .flatMap(dstChan -> migrateTextChannelMessages(srcChan, dstChan));
+    /**
+     * Estimate the amount of work left on a source channel, by the time span of its messages left to migrate.
+     * @return The duration in milliseconds between the resume point and the last message of the channel.
+     */
+    private long getPendingSpan(TextChannel srcChan) {
+        return srcChan.getLastMessageId()
+                .map(last -> last.getTimestamp().toEpochMilli()
+                        - getResumePoint(srcChan).getTimestamp().toEpochMilli())
+                .filter(span -> span > 0)
+                .orElse(0L);
     }
-    private Mono<TextChannelMigrationResult> migrateTextChannelMessages(
-            @NonNull TextChannel srcChan, @NonNull TextChannel dstChan
-    ) {
+
+    /**
+     * Whether a source thread was migrated up to its last message in every destination.
+     */
+    private boolean isThreadMigrated(TextChannel srcThread) {
+        Snowflake last = srcThread.getLastMessageId().orElse(null);
+        return last != null && destinations.stream().allMatch(dest -> dest.journal.getChannel(srcThread.getId())
+                .isPresent() && dest.journal.getWatermark(srcThread.getId()).filter(w -> w.compareTo(last) >= 0)
+                .isPresent());
+    }
+
+    /**
+     * Map a source thread to its copy in a destination, reusing the one recorded in the journal or creating it.
+     * @return The destination thread, or empty if its parent channel is not in the destination.
+     */
+    private Mono<TextChannel> resolveThread(Destination dest, TextChannel srcThread) {
+        Snowflake srcParent = ThreadDirectory.getParentId(srcThread);
+        Snowflake dstParent = dest.channelIds.get(srcParent);
+        if (dstParent == null) {
+            LOGGER.warn("No destination channel for thread "+srcThread.getName()+" in "+dest.guild.getName());
+            return Mono.empty();
+        }
+        Mono<TextChannel> created = Mono.defer(() -> threads.createThread(srcThread, dstParent,
+                        dest.forums.contains(dstParent)))
+                .doOnNext(dstThread -> dest.journal.recordChannel(srcThread.getId(), dstThread.getId()));
+        return Mono.justOrEmpty(dest.journal.getChannel(srcThread.getId()))
+                .flatMap(id -> threads.getThread(id)
+                        .onErrorResume(err -> {
+                            LOGGER.warn("Thread "+srcThread.getName()+" was deleted from "+dest.guild.getName()
+                                    +", creating it again");
+                            return Mono.empty();
+                        }))
+                .switchIfEmpty(created)
+                .doOnNext(dstThread -> {
+                    dest.channelMap.put(srcThread.getId(), dstThread);
+                    dest.channelIds.put(srcThread.getId(), dstThread.getId());
+                });
+    }
+
+    /**
+     * Page the text channels, without writing anything, and report the size and projected duration of the migration.
+     * @param textChannels The text channels to migrate.
+     */
+    protected void estimate(List<TextChannel> textChannels) {
+        LOGGER.info("Estimating migration ...");
+        List<MigrationEstimator.ChannelEstimate> channels = Objects.requireNonNull(Flux.fromIterable(textChannels)
+                .flatMapSequential(srcChan -> {
+                    MigrationEstimator.ChannelEstimate estimate = estimator.channel(srcChan.getName());
+                    return fetchMessages(srcChan, getResumePoint(srcChan))
+                            .filter(m -> destinations.stream().anyMatch(dest -> !dest.journal.isMigrated(m.getId())))
+                            .filter(m -> m.getType() == Message.Type.DEFAULT || m.getType() == Message.Type.REPLY)
+                            .filter(m -> !m.getUserData().system().toOptional().orElse(false))
+                            .filter(m -> !noBotMessages || !m.getUserData().bot().toOptional().orElse(false))
+                            .doOnNext(m -> estimate.add(m, layoutMessage(m,
+                                    m.getAuthor().orElseGet(() -> new User(client, m.getUserData())),
+                                    estimator.placeholders(m))))
+                            .then(Mono.just(estimate))
+                            .onErrorResume(err -> {
+                                LOGGER.warn("Error in text channel estimation ("+srcChan.getName()+"):", err);
+                                return Mono.empty();
+                            });
+                })
+                .collectList()
+                .block());
+
+        long messages = 0, attachments = 0, bytes = 0, posts = 0;
+        for (MigrationEstimator.ChannelEstimate channel : channels) {
+            LOGGER.info("Channel "+channel.getName()+": "+channel.getMessages()+" messages, "
+                    +channel.getAttachments()+" attachments ("+formatBytes(channel.getBytes())+"), "
+                    +channel.getPosts()+" posts, about "+formatDuration(estimator.duration(channel)));
+            messages += channel.getMessages();
+            attachments += channel.getAttachments();
+            bytes += channel.getBytes();
+            posts += channel.getPosts();
+        }
+        LOGGER.info("Total: "+messages+" messages, "+attachments+" attachments ("+formatBytes(bytes)+"), "
+                +posts+" posts per destination, about "+formatDuration(estimator.duration(channels)));
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024) return (bytes / 1024)+" KB";
+        return (bytes / (1024 * 1024))+" MB";
+    }
+
+    private static String formatDuration(Duration duration) {
+        if (duration.toHours() > 0) return duration.toHours()+"h"+duration.toMinutesPart()+"m";
+        if (duration.toMinutes() > 0) return duration.toMinutes()+"m"+duration.toSecondsPart()+"s";
+        return duration.toSeconds()+"s";
+    }
+
+    /**
+     * Migrate the messages of a source channel to every destination, from where the previous migration stopped.
+     * @param srcChan The source channel.
+     * @return The migration result for each destination.
+     */
+    private Flux<TextChannelMigrationResult> migrateTextChannelMessages(@NonNull TextChannel srcChan) {
         LOGGER.info("Migrating channel: "+srcChan.getName()+" ("+srcChan.getId().asString()+")");
+        Snowflake watermark = getResumePoint(srcChan);
+        if (watermark.compareTo(getChannelStartDate(srcChan.getId())) > 0) {
+            LOGGER.info("Resuming channel "+srcChan.getName()+" after "+watermark.getTimestamp());
+        }
+        LOGGER.debug("Channel date: "+watermark.getTimestamp());
+        return migrateMessages(srcChan, fetchMessages(srcChan, watermark), true);
+    }
+
+    /**
+     * Fetch the messages of a source channel, in chronological order.
+     * <p>
+     *     The range from the watermark to the last message of the channel is split into time slices, fetched
+     *     concurrently by their own pager. Slices are merged back in order, each one buffering at most its share of
+     *     the fetch-ahead while waiting for the previous ones.
+     * </p>
+     * @param srcChan The source channel.
+     * @param watermark The ID after which messages are fetched.
+     * @return The messages of the channel.
+     */
+    private Flux<Message> fetchMessages(@NonNull TextChannel srcChan, @NonNull Snowflake watermark) {
+        Snowflake lastMessageId = srcChan.getLastMessageId().orElse(null);
+        if (fetchSlices <= 1 || lastMessageId == null || lastMessageId.compareTo(watermark) <= 0)
+            return srcChan.getMessagesAfter(watermark);
+
+        long start = watermark.asLong();
+        long step = (lastMessageId.asLong() - start) / fetchSlices;
+        if (step <= 0) return srcChan.getMessagesAfter(watermark);
+        List<Flux<Message>> slices = new ArrayList<>(fetchSlices);
+        for (int i = 0; i < fetchSlices; i++) {
+            Snowflake after = Snowflake.of(start + step * i);
+            if (i == fetchSlices - 1) {
+                // The last slice is open-ended, it includes messages posted since the migration started
+                slices.add(srcChan.getMessagesAfter(after));
+            } else {
+                Snowflake until = Snowflake.of(start + step * (i + 1));
+                slices.add(srcChan.getMessagesAfter(after).takeWhile(m -> m.getId().compareTo(until) <= 0));
+            }
+        }
+        LOGGER.debug("Fetching "+srcChan.getName()+" in "+fetchSlices+" slices");
+        return Flux.mergeSequential(slices, fetchSlices, Math.max(1, fetchAhead / fetchSlices));
+    }
+
+    /**
+     * The point from which the messages of a channel should be fetched: the lowest watermark of all destinations.
+     * <p>
+     *     Before the structure of destinations is planned, the watermark of every destination is considered.
+     * </p>
+     * @param srcChan The source channel.
+     * @return The ID after which messages have not been migrated to every destination yet.
+     */
+    protected Snowflake getResumePoint(@NonNull TextChannel srcChan) {
         Snowflake startDate = getChannelStartDate(srcChan.getId());
-        LOGGER.debug("Channel date: "+startDate.getTimestamp());
-        Flux<Message> flux = srcChan.getMessagesAfter(startDate);
-        if (delay > 0) flux = flux.delayElements(Duration.ofMillis(delay)); // Delay to reduce rate-limiting
-        return flux.filter(m -> m.getReactions().stream() // Filter on non migrated messages
+        Snowflake watermark = destinations.stream()
+                .filter(dest -> !dest.planned || dest.channelMap.get(srcChan.getId()) instanceof TextChannel)
+                .map(dest -> dest.journal.getWatermark(srcChan.getId()).orElse(startDate))
+                .min(Snowflake::compareTo)
+                .orElse(startDate);
+        return watermark.compareTo(startDate) > 0 ? watermark : startDate;
+    }
+
+    /**
+     * Migrate messages of a source channel to every destination.
+     * <p>
+     *     Source messages are prepared once, then handed to an independent writer for each destination.
+     *     Each writer has its own buffer, a slow destination only holds back the others once its buffer is full.
+     *     Once all messages are handled, the last message becomes the channel watermark of destinations
+     *     where nothing failed.
+     * </p>
+     * <p>
+     *     Each source message reserves its place in the in-flight budget as it is taken from the fetched pages, and
+     *     releases it once posted to every destination, dropped, or merged in a pack: fetching stops once the budget
+     *     is spent, at most a page of messages ahead. The attachments of a message reserve their total size at once,
+     *     through the account of the channel.
+     * </p>
+     * @param srcChan The source channel.
+     * @param messages The messages to migrate, in chronological order.
+     * @param pack Whether consecutive messages may be packed, if packing is enabled.
+     * @return The migration result for each destination.
+     */
+    protected Flux<TextChannelMigrationResult> migrateMessages(
+            @NonNull TextChannel srcChan, @NonNull Flux<Message> messages, boolean pack
+    ) {
+        Map<Destination, TextChannel> targets = new LinkedHashMap<>();
+        for (Destination dest : destinations) {
+            GuildChannel dstChan = dest.channelMap.get(srcChan.getId());
+            if (dstChan instanceof TextChannel dstText) targets.put(dest, dstText);
+            else LOGGER.warn("No destination channel for "+srcChan.getName()+" in "+dest.guild.getName());
+        }
+        if (targets.isEmpty()) return Flux.empty();
+
+        // Track the last message seen, it becomes the channel watermark of destinations where nothing failed
+        AtomicReference<Snowflake> lastSeen = new AtomicReference<>();
+        AtomicBoolean prepareFailed = new AtomicBoolean(false);
+        // Fetcher: reads source pages ahead of the writers, into a bounded buffer
+        AtomicInteger inFlight = writes.getMetrics().inFlight(srcChan.getId(), srcChan.getName());
+        InFlightBudget.Account account = budget.newAccount();
+        Flux<Delivery> prepared = messages
+                .concatMap(m -> account.reserveMessage().thenReturn(m))
+                .doOnNext(m -> {
+                    writes.getMetrics().messageFetched();
+                    lastSeen.accumulateAndGet(m.getId(), (a, b) -> a == null || b.compareTo(a) > 0 ? b : a);
+                })
+                .publishOn(scheduler, fetchAhead)
+                .filter(m -> targets.keySet().stream() // Filter on non migrated messages
+                        .anyMatch(dest -> !dest.journal.isMigrated(m.getId())))
+                .filter(m -> m.getReactions().stream()
                         .filter(Reaction::selfReacted)
                         .noneMatch(r -> r.getEmoji().equals(MIGRATED_EMOJI)))
-                .flatMap(m -> migrateMessage(m, dstChan)) // Perform migration
+                // Transformer: prepares messages concurrently, but emits them in order
+                .flatMapSequential(m -> prepareMessage(m, account)
+                        .onErrorResume(err -> {
+                            prepareFailed.set(true);
+                            LOGGER.warn("Error in message preparation ("
+                                    +m.getChannelId().asString()+"/"+m.getId().asString()+")", err);
+                            return Mono.empty();
+                        })
+                        .switchIfEmpty(Mono.fromRunnable(() -> account.releaseMessages(1))), messageConcurrency)
+                .transform(packed -> pack && packer != null
+                        ? packer.pack(packed, merged -> account.releaseMessages(1)) : packed)
+                .doOnDiscard(PreparedMessage.class, PreparedMessage::close)
+                .doOnDiscard(Message.class, m -> account.releaseMessages(1))
+                .map(m -> new Delivery(m, targets.size(), inFlight, account));
+
+        // Writers: one per destination, each posting messages one at a time, in order
+        return prepared.publish(shared -> Flux.fromIterable(targets.entrySet())
+                .flatMap(target -> writeMessages(shared, srcChan, target.getKey(), target.getValue())
+                        .doOnNext(res -> {
+                            if (!prepareFailed.get() && lastSeen.get() != null)
+                                target.getKey().journal.recordWatermark(srcChan.getId(), lastSeen.get());
+                        })
+                        .map(WriterResult::result)),
+                fetchAhead)
+                .doFinally(signal -> account.close());
+    }
+
+    /**
+     * Post prepared messages in a destination channel, from its own bounded buffer.
+     * @param deliveries The prepared messages, shared with the writers of other destinations.
+     * @return The migration result, empty if some messages failed.
+     */
+    private Mono<WriterResult> writeMessages(
+            Flux<Delivery> deliveries, TextChannel srcChan, Destination dest, TextChannel dstChan
+    ) {
+        AtomicBoolean failed = new AtomicBoolean(false);
+        return deliveries.publishOn(scheduler, destinationBuffer)
+                .concatMap(delivery -> {
+                    PreparedMessage m = delivery.message;
+                    if (dest.journal.isMigrated(m.id())) return delivery.done(true).then(Mono.<Message>empty());
+                    return messageWriter.post(dest.rewriter.rewrite(m), dest.journal, dstChan)
+                            .flatMap(created -> delivery.done(true).thenReturn(created))
+                            .onErrorResume(err -> {
+                                failed.set(true);
+                                LOGGER.warn("Error in message migration to "+dest.guild.getName()+" ("
+                                        +m.channelId().asString()+"/"+m.id().asString()+")", err);
+                                return delivery.done(false).then(Mono.empty());
+                            });
+                })
+                .doOnDiscard(Delivery.class, Delivery::discard)
                 .count()
-                .map(count -> new TextChannelMigrationResult(srcChan, dstChan, count));
+                .map(count -> new WriterResult(new TextChannelMigrationResult(srcChan, dstChan, count), failed.get()))
+                .filter(res -> !res.failed);
     }
 
-    private Mono<Message> migrateMessage(@NonNull Message msg, @NonNull TextChannel dstChan) {
+    /**
+     * Convert a source message for the destination guild, downloading its attachments.
+     * @param msg The source message.
+     * @param account The budget account of the channel, through which attachments are reserved.
+     * @return The prepared message, or empty if this message should not be migrated.
+     */
+    private Mono<PreparedMessage> prepareMessage(@NonNull Message msg, InFlightBudget.Account account) {
         String logId = msg.getChannelId().asString()+"/"+msg.getId().asString();
         if (msg.getType() != Message.Type.DEFAULT && msg.getType() != Message.Type.REPLY) {
             LOGGER.info("Skipping message ("+logId+"), unknown type: "+msg.getType().name());
@@ -252,100 +726,71 @@ public class MigrateCommand extends Command {
             author = new User(client, authorData);
         }
 
-        CompletableFuture<Message> fut = new CompletableFuture<>();
-        LOGGER.info("Migrating message ("+logId+"): "+author.getUsername()+" at "+msg.getTimestamp());
-        MessageCreateSpec.Builder m = MessageCreateSpec.builder();
         if (verbosity >= 2) {
             LOGGER.debug("Raw message:\n\t" + msg.getContent().replaceAll("\n", "\n\t"));
         }
 
-        // Add message info to embed
-        String message = msg.getContent().replaceAll("<@&\\d+>", ""); // Remove role mentions
-        EmbedCreateSpec.Builder embed = EmbedCreateSpec.builder()
-                .author(author.getUsername(), null, author.getAvatarUrl())
-                .timestamp(msg.getEditedTimestamp().orElse(msg.getTimestamp()))
-                .description(message);
+        // Download files, they are re-uploaded with the message
+        Mono<List<CachedAttachment>> files = reUploadFiles ? downloader.downloadAll(msg.getAttachments(), account)
+                : Mono.just(List.of());
+        User msgAuthor = author;
+        return files.map(atts -> layoutMessage(msg, msgAuthor, atts));
+    }
 
-        if (reUploadFiles) {
-            // Download and re-upload files
-            m.addEmbed(embed.build()); // Send message embed now because we won't need it later
-            for (Attachment att : msg.getAttachments()) {
-                try {
-                    HttpURLConnection conn = (HttpURLConnection) new URL(att.getUrl()).openConnection();
-                    conn.setRequestProperty("User-Agent", "DiscordTransfer (v"+DiscordTransfer.VERSION+")");
-                    if (conn.getResponseCode()/100 != 2 && conn.getContentLength() > 0) {
-                        // Decode error message
-                        InputStream stream = conn.getErrorStream();
-                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                        int nRead;
-                        byte[] data = new byte[1024];
-                        while ((nRead = stream.read(data, 0, data.length)) != -1) {
-                            buffer.write(data, 0, nRead);
-                        }
-                        stream.close();
-                        buffer.flush();
-                        LOGGER.warn("Attachment HTTP error:\n\t"+buffer.toString(StandardCharsets.UTF_8)
-                                .replaceAll("\n", "\n\t"));
-                    } else {
-                        // Upload downloaded data
-                        m.addFile(att.getFilename(), conn.getInputStream());
-                    }
-                } catch (IOException e) {
-                    LOGGER.warn("Unable to forward attachment", e);
-                }
-            }
-        } else {
+    /**
+     * Lay out a source message for the destination guild.
+     * @param msg The source message.
+     * @param author The author of the message.
+     * @param files The attachment files to upload, empty if files are linked rather than re-uploaded.
+     * @return The prepared message.
+     */
+    private PreparedMessage layoutMessage(Message msg, User author, List<CachedAttachment> files) {
+        List<MessageLayout.LinkedAttachment> links = new ArrayList<>();
+        if (!reUploadFiles) {
             // Just link to the original files
-            boolean firstImage = true;
-            List<EmbedCreateSpec> otherEmbeds = new ArrayList<>();
             for (Attachment att : msg.getAttachments()) {
-                if (att.getWidth().isPresent()) {
-                    // This is an image
-                    if (firstImage) {
-                        // Include first image in embed
-                        embed.image(att.getUrl());
-                        firstImage = false;
-                    } else {
-                        // Create new embeds with following images
-                        otherEmbeds.add(EmbedCreateSpec.builder().image(att.getUrl()).build());
-                    }
-                } else {
-                    // This is a file
-                    otherEmbeds.add(EmbedCreateSpec.builder().title(att.getFilename()).url(att.getUrl()).build());
-                }
+                links.add(new MessageLayout.LinkedAttachment(att.getFilename(), att.getUrl(),
+                        att.getWidth().isPresent()));
             }
-
-            m.addEmbed(embed.build());
-            m.addAllEmbeds(otherEmbeds);
         }
 
         // Clone embeds from source message
-        for (Embed sourceEmbed : msg.getEmbeds()) {
-            m.addEmbed(cloneEmbed(sourceEmbed));
-        }
+        List<EmbedCreateSpec> sourceEmbeds = msg.getEmbeds().stream().map(MigrateCommand::cloneEmbed).toList();
+        String content = msg.getContent();
+        // Webhooks post the content as is, unless it does not fit in a message
+        boolean unsigned = useWebhooks && content.length() <= MessageLayout.MAX_CONTENT_LENGTH
+                && (!content.isEmpty() || !msg.getAttachments().isEmpty() || !sourceEmbeds.isEmpty());
+        List<EmbedCreateSpec> embeds = unsigned ? MessageLayout.buildUnsigned(links, sourceEmbeds)
+                : MessageLayout.build(author.getUsername(), author.getAvatarUrl(),
+                        msg.getEditedTimestamp().orElse(msg.getTimestamp()), msg.getContent(), links, sourceEmbeds);
 
-        // Perform creation
-        dstChan.createMessage(m.build())
-                .onErrorResume(err -> {
-                    LOGGER.warn("Error in message migration", err);
-                    return Mono.empty();
-                })
-                .subscribe(
-                        createdMessage -> msg.addReaction(MIGRATED_EMOJI)
-                                .doOnSuccess(h -> fut.complete(createdMessage))
-                                .doOnError(err -> {
-                                    LOGGER.warn("Couldn't add migrated emote on: "
-                                            + dstChan.getName() + "/#" + msg.getId().asString(), err);
-                                    fut.complete(createdMessage);
-                                })
-                                .subscribe(),
-                        fut::completeExceptionally);
-
-        // Return future
-        return Mono.fromFuture(fut);
+        // Replies to messages of another channel cannot be reposted as replies
+        Snowflake replyTo = msg.getMessageReference()
+                .filter(ref -> ref.getChannelId().equals(msg.getChannelId()))
+                .flatMap(MessageReference::getMessageId)
+                .orElse(null);
+        return new PreparedMessage(msg.getChannelId(), msg.getId(), List.of(), replyTo,
+                author.getUsername(), author.getAvatarUrl(), msg.getTimestamp(), unsigned ? content : null, embeds,
+                files);
     }
 
-    public EmbedCreateSpec cloneEmbed(Embed sourceEmbed) {
+    /**
+     * Mark a source message as migrated, once it was posted to every destination.
+     */
+    private Mono<Void> addMigratedReaction(@NonNull PreparedMessage msg) {
+        return Flux.fromIterable(msg.sourceIds())
+                .concatMap(id -> writes.schedule(Routes.REACTION_CREATE, msg.channelId(),
+                                client.getRestClient().getMessageById(msg.channelId(), id)
+                                        .createReaction(MIGRATED_EMOJI_RAW))
+                        .onErrorResume(err -> {
+                            LOGGER.warn("Couldn't add migrated emote on: "
+                                    + msg.channelId().asString() + "/#" + id.asString(), err);
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+
+    public static EmbedCreateSpec cloneEmbed(Embed sourceEmbed) {
         EmbedCreateSpec.Builder newEmbed = EmbedCreateSpec.builder();
         sourceEmbed.getAuthor().ifPresent(embedAuthor -> newEmbed.author(
                 embedAuthor.getName().orElseThrow(() -> new IllegalStateException("Embed author has no name")),
@@ -376,49 +821,70 @@ public class MigrateCommand extends Command {
                 : chanId;
     }
 
+    public record TextChannelMigrationResult(TextChannel sourceChan, TextChannel destChan, long messageCount) {}
+
+    private record WriterResult(TextChannelMigrationResult result, boolean failed) {}
+
     /**
-     * The list of text channels to migrate.
-     * <p>
-     *     This list includes all text channels from the selected categories
-     *     (see {@link MigrateCommand#getSelectedCategories()} excluding skipped channels
-     *     to which explicitly included channels are added.
-     * </p>
-     * @return A flux of selected text channels in the source guild.
+     * A destination guild, with its own journal and channel mapping.
      */
-    private Flux<TextChannel> getSelectedTextChannels() {
-        return Flux.concat(
-                getSelectedCategories()
-                        .flatMap(Category::getChannels)
-                        .ofType(TextChannel.class),
-                Mono.justOrEmpty(includeChannels)
-                        .flatMapMany(Flux::fromIterable)
-                        .flatMap(srcGuild::getChannelById)
-                        .ofType(TextChannel.class)
-        ).filter(c -> !skipChannels.contains(c.getId()));
+    private static class Destination {
+        private final Guild guild;
+        private final MigrationJournal journal;
+        /** Source channels to destination channels, threads are added as they are created. */
+        private final Map<Snowflake, GuildChannel> channelMap = new ConcurrentHashMap<>();
+        /** Source channels to destination channel IDs, forum channels included. */
+        private final Map<Snowflake, Snowflake> channelIds = new ConcurrentHashMap<>();
+        /** The destination forum channels. */
+        private final Set<Snowflake> forums = ConcurrentHashMap.newKeySet();
+        /** Whether the destination structure was planned, before that the channel map is empty. */
+        private volatile boolean planned;
+        private ContentRewriter rewriter;
+
+        private Destination(Guild guild, MigrationJournal journal) {
+            this.guild = guild;
+            this.journal = journal;
+        }
     }
 
     /**
-     * The list of categories to migrate.
+     * A prepared message shared by the writers of every destination.
      * <p>
-     *     If at least one category was specified in parameter then only return
-     *     explicitly selected categories, otherwise, and if no explicit channel are included,
-     *     return all categories present in the source guild.
+     *     The message is closed, releasing its attachments, once the last writer is done with it.
+     *     It is only marked as migrated if it was posted to every destination.
      * </p>
-     * @return A flux of selected categories in the source guild.
      */
-    private Flux<Category> getSelectedCategories() {
-        return Mono.justOrEmpty(categories)
-                .flatMapMany(Flux::fromIterable)
-                .flatMap(srcGuild::getChannelById)
-                .ofType(Category.class)
-                // If no catagory was selected
-                .switchIfEmpty(includeChannels != null && includeChannels.size() > 0
-                        // But there are included channels, no categories
-                        ? Flux.empty()
-                        // Otherwise, return all existing categories
-                        : srcGuild.getChannels().ofType(Category.class));
-    }
+    private class Delivery {
+        private final PreparedMessage message;
+        private final AtomicInteger pending;
+        private final AtomicBoolean failed = new AtomicBoolean(false);
+        private final AtomicInteger inFlight;
+        private final InFlightBudget.Account account;
 
-    public record TextChannelMigrationResult(TextChannel sourceChan, TextChannel destChan, long messageCount) {}
+        private Delivery(PreparedMessage message, int destinations, AtomicInteger inFlight,
+                         InFlightBudget.Account account) {
+            this.message = message;
+            this.pending = new AtomicInteger(destinations);
+            this.inFlight = inFlight;
+            this.account = account;
+            inFlight.incrementAndGet();
+        }
 
+        private Mono<Void> done(boolean success) {
+            if (!success) failed.set(true);
+            if (pending.decrementAndGet() > 0) return Mono.empty();
+            inFlight.decrementAndGet();
+            message.close();
+            account.releaseMessages(1);
+            return markMigrated && !failed.get() ? addMigratedReaction(message) : Mono.empty();
+        }
+
+        private void discard() {
+            failed.set(true);
+            if (pending.decrementAndGet() > 0) return;
+            inFlight.decrementAndGet();
+            message.close();
+            account.releaseMessages(1);
+        }
+    }
 }
@@ -0,0 +1,157 @@
+package com.billialpha.discord.transfer.commands;
+
+import com.billialpha.discord.transfer.Parameters;
+import discord4j.common.util.Snowflake;
+import discord4j.core.event.domain.message.MessageCreateEvent;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.channel.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Migrates the selected channels, then keeps mirroring new messages as they are posted.
+ * <p>
+ *     New messages are received from the gateway, each channel buffering them in a bounded queue while the backfill
+ *     runs or while its destinations are busy. When a queue overflows, the messages which did not fit are fetched
+ *     back from the source channel as soon as the writers reach the end of the queue, bursts are never lost.
+ * </p>
+ */
+public class SyncCommand extends MigrateCommand {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyncCommand.class);
+    private static final long SHUTDOWN_TIMEOUT = 30;
+
+    public static final Description DESCRIPTION = new Description(
+            "sync",
+            "Migrates messages, then mirrors new messages as they are posted, until stopped",
+            Connection.GATEWAY,
+            MigrateCommand.DESCRIPTION.params().extend(Parameters.create()
+                    .withOption("queue-size", null,
+                            "Number of new messages buffered for each channel, before fetching them back on overflow",
+                            Integer::parseUnsignedInt, 1000)
+                    .buildParams()),
+            SyncCommand::new
+    );
+
+    private final int queueSize;
+
+    public SyncCommand(Invocation params) {
+        super(params);
+        if (params.hasFlag("dry-run"))
+            throw new IllegalArgumentException("No dry run for synchronization, use the migrate action");
+        this.queueSize = Math.max(1, params.<Integer>get("queue-size"));
+    }
+
+    @Override
+    public void execute() {
+        Sinks.Empty<Void> shutdown = Sinks.empty();
+        CountDownLatch stopped = new CountDownLatch(1);
+        Disposable events = null;
+        // Registered before the backfill, a stop during the backfill also waits for the journals to be closed,
+        // and the synchronization that follows stops at once
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LOGGER.info("Stopping synchronization ...");
+            shutdown.tryEmitEmpty();
+            try {
+                if (!stopped.await(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+                    LOGGER.warn("Synchronization did not stop in time");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "sync-shutdown"));
+
+        try {
+            List<TextChannel> textChannels = getSelectedTextChannels();
+            Map<Snowflake, LiveChannel> live = new HashMap<>();
+            for (TextChannel channel : textChannels) live.put(channel.getId(), new LiveChannel(channel));
+
+            // Listen before the backfill, messages posted meanwhile are queued
+            events = client.on(MessageCreateEvent.class)
+                    .map(MessageCreateEvent::getMessage)
+                    .subscribe(m -> {
+                        LiveChannel channel = live.get(m.getChannelId());
+                        if (channel != null) channel.push(m);
+                    });
+
+            migrate(textChannels);
+
+            LOGGER.info("Synchronizing new messages, stop with Ctrl+C");
+            Flux.fromIterable(live.values())
+                    .flatMap(channel -> migrateMessages(channel.source, channel.messages()
+                                    .takeUntilOther(shutdown.asMono()), false)
+                            .onErrorResume(err -> {
+                                LOGGER.warn("Error in text channel synchronization ("
+                                        +channel.source.getName()+"):", err);
+                                return Mono.empty();
+                            }), live.size())
+                    .blockLast();
+        } finally {
+            if (events != null) events.dispose();
+            closeJournals();
+            stopped.countDown();
+        }
+
+        client.logout().block();
+        LOGGER.debug("Logged out");
+    }
+
+    /**
+     * The new messages of a source channel.
+     */
+    private class LiveChannel {
+        private final TextChannel source;
+        private final Sinks.Many<Message> queue;
+        /** Requests to fetch back missed messages, at most one is pending. */
+        private final Sinks.Many<Boolean> catchUp = Sinks.many().unicast().onBackpressureBuffer();
+        /** Whether some messages did not fit in the queue, and are not fetched back yet. */
+        private final AtomicBoolean missed = new AtomicBoolean(false);
+
+        private LiveChannel(TextChannel source) {
+            this.source = source;
+            this.queue = Sinks.many().unicast().onBackpressureBuffer(Queues.<Message>get(queueSize).get());
+        }
+
+        private synchronized void push(Message m) {
+            Sinks.EmitResult result = queue.tryEmitNext(m);
+            if (result == Sinks.EmitResult.FAIL_OVERFLOW) {
+                if (missed.compareAndSet(false, true)) {
+                    LOGGER.warn("Queue of "+source.getName()+" is full, missed messages will be fetched back");
+                    catchUp.tryEmitNext(true);
+                }
+            } else if (result.isFailure()) {
+                LOGGER.debug("Unable to queue message ("+m.getChannelId().asString()+"/"+m.getId().asString()
+                        +"): "+result);
+            }
+        }
+
+        /**
+         * @return The new messages of the channel, in order, missed ones being fetched back from the channel.
+         */
+        private Flux<Message> messages() {
+            AtomicReference<Snowflake> lastSeen = new AtomicReference<>(getResumePoint(source));
+            return Flux.merge(
+                            queue.asFlux().map(Flux::just),
+                            // Queued messages are fetched back as well, their queued copy is then skipped
+                            catchUp.asFlux().map(request -> Flux.defer(() -> {
+                                missed.set(false);
+                                LOGGER.debug("Fetching back missed messages of "+source.getName());
+                                return source.getMessagesAfter(lastSeen.get());
+                            })))
+                    .concatMap(messages -> messages, 1)
+                    .filter(m -> m.getId().compareTo(lastSeen.get()) > 0)
+                    .doOnNext(m -> lastSeen.set(m.getId()));
+        }
+    }
+}
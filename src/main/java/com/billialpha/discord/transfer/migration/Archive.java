@@ -0,0 +1,366 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An on-disk archive of a guild history, written and read as a stream.
+ * <p>
+ *     Each channel is stored in its own segment file, made of independently compressed blocks of records:
+ *     a message record holds the raw message data (JSON) and is followed by the records of its attachment files.
+ *     An index file next to each segment holds the ID of the first message of every block and the block offset,
+ *     so that a segment can be read from a given date without decompressing the blocks before it.
+ * </p>
+ * <p>
+ *     The channels of the archive are listed in a {@value #MANIFEST} file, one {@code <channel-id> <name>} per line.
+ *     Exporting again in the same directory appends new blocks to the segments of the channels exported again,
+ *     starting after the last message they hold, so that the previous history is kept.
+ * </p>
+ */
+public class Archive {
+    public static final String MANIFEST = "channels";
+    private static final String SEGMENT_EXT = ".seg";
+    private static final String INDEX_EXT = ".idx";
+    private static final byte MESSAGE_RECORD = 1;
+    private static final byte ATTACHMENT_RECORD = 2;
+    private static final int INDEX_ENTRY_SIZE = 2 * Long.BYTES;
+
+    private final Path dir;
+    /** The name of each channel of the manifest, in the order they were added. */
+    private final Map<String, String> channels;
+
+    private Archive(Path dir, Map<String, String> channels) {
+        this.dir = dir;
+        this.channels = channels;
+    }
+
+    /**
+     * Open an archive directory, creating it if needed.
+     * @param dir The archive directory.
+     * @return The archive.
+     * @throws IOException If the directory cannot be created.
+     */
+    public static Archive open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, String> channels = new LinkedHashMap<>();
+        Path manifest = dir.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) continue;
+                int space = line.indexOf(' ');
+                if (space < 0) channels.put(line, "");
+                else channels.put(line.substring(0, space), line.substring(space + 1));
+            }
+        }
+        return new Archive(dir, channels);
+    }
+
+    /**
+     * Open the segment of a channel for writing, new blocks are appended after the existing ones.
+     * @param channelId The channel ID.
+     * @param name The channel name, recorded in the manifest.
+     * @param blockSize The number of messages in each compressed block.
+     * @return A writer for the channel segment, it should be closed once the channel is exported.
+     * @throws IOException If the segment files cannot be opened, or the manifest cannot be written.
+     */
+    public SegmentWriter openSegment(Snowflake channelId, String name, int blockSize) throws IOException {
+        synchronized (this) {
+            channels.put(channelId.asString(), name.replace('\n', ' '));
+            writeManifest();
+        }
+        return new SegmentWriter(dir.resolve(channelId.asString()+SEGMENT_EXT),
+                dir.resolve(channelId.asString()+INDEX_EXT), blockSize);
+    }
+
+    /**
+     * Read the segment of a channel, starting from a given message.
+     * @param channelId The channel ID.
+     * @param from The first message ID to read, records of previous messages are skipped.
+     * @return A reader for the channel segment, it should be closed once done.
+     * @throws IOException If the segment cannot be read.
+     */
+    public SegmentReader readSegment(Snowflake channelId, Snowflake from) throws IOException {
+        Path segment = dir.resolve(channelId.asString()+SEGMENT_EXT);
+        long offset = findBlock(dir.resolve(channelId.asString()+INDEX_EXT), from.asLong());
+        return new SegmentReader(segment, offset, from.asLong());
+    }
+
+    /**
+     * Binary search of the last block starting before a message, directly in the index file.
+     */
+    private static long findBlock(Path index, long from) throws IOException {
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            long low = 0;
+            long high = channel.size() / INDEX_ENTRY_SIZE - 1;
+            long offset = 0;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                entry.clear();
+                while (entry.hasRemaining()) {
+                    if (channel.read(entry, mid * INDEX_ENTRY_SIZE + entry.position()) < 0)
+                        throw new EOFException("Truncated archive index: "+index);
+                }
+                entry.flip();
+                long firstId = entry.getLong();
+                if (firstId <= from) {
+                    offset = entry.getLong();
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Find the last message of the segment of a channel, only the last block is decompressed.
+     * @param channelId The channel ID.
+     * @return The ID of the last message of the segment, or empty if the channel has no segment yet.
+     * @throws IOException If the segment cannot be read.
+     */
+    public Optional<Snowflake> getLastMessage(Snowflake channelId) throws IOException {
+        Path index = dir.resolve(channelId.asString()+INDEX_EXT);
+        if (!Files.exists(index) || Files.size(index) < INDEX_ENTRY_SIZE) return Optional.empty();
+        long firstId;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(index))) {
+            in.skipNBytes((Files.size(index) / INDEX_ENTRY_SIZE - 1) * INDEX_ENTRY_SIZE);
+            firstId = in.readLong();
+        }
+        Snowflake last = Snowflake.of(firstId);
+        try (SegmentReader reader = readSegment(channelId, last)) {
+            Record record;
+            while ((record = reader.next()) != null) {
+                if (!record.attachment()) last = record.id();
+            }
+        }
+        return Optional.of(last);
+    }
+
+    /**
+     * Rewrite the whole manifest, replacing the previous one at once.
+     */
+    private void writeManifest() throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        channels.forEach((id, name) -> manifest.append(id).append(' ').append(name).append('\n'));
+        Path tmp = dir.resolve(MANIFEST+".tmp");
+        Files.writeString(tmp, manifest, StandardCharsets.UTF_8);
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the records of a channel as they are exported.
+     * <p>
+     *     Only the current block is buffered by the compressor, the heap use does not depend on the segment size.
+     * </p>
+     */
+    public static class SegmentWriter implements Closeable {
+        private final FileChannel channel;
+        private final OutputStream file;
+        private final DataOutputStream index;
+        private final int blockSize;
+        private DataOutputStream block;
+        private int blockMessages;
+
+        private SegmentWriter(Path segment, Path indexFile, int blockSize) throws IOException {
+            this.blockSize = blockSize;
+            this.channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            // Blocks are closed without closing the segment file
+            this.file = new FilterOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel))) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+            this.index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        }
+
+        /**
+         * Append a message, messages should be written in chronological order.
+         * @param id The message ID.
+         * @param data The raw message data.
+         */
+        public void writeMessage(Snowflake id, byte[] data) throws IOException {
+            if (block == null || blockMessages >= blockSize) {
+                finishBlock();
+                index.writeLong(id.asLong());
+                index.writeLong(channel.position());
+                block = new DataOutputStream(new GZIPOutputStream(file, 64 * 1024));
+                blockMessages = 0;
+            }
+            blockMessages++;
+            block.writeByte(MESSAGE_RECORD);
+            block.writeLong(id.asLong());
+            block.writeInt(data.length);
+            block.write(data);
+        }
+
+        /**
+         * Append an attachment of the last message written, streaming the file content.
+         * @param id The attachment ID.
+         * @param filename The attachment name.
+         * @param path The attachment file.
+         */
+        public void writeAttachment(Snowflake id, String filename, Path path) throws IOException {
+            if (block == null) throw new IllegalStateException("Attachment written before any message");
+            block.writeByte(ATTACHMENT_RECORD);
+            block.writeLong(id.asLong());
+            block.writeUTF(filename);
+            block.writeLong(Files.size(path));
+            Files.copy(path, block);
+        }
+
+        private void finishBlock() throws IOException {
+            if (block == null) return;
+            block.close();
+            block = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (channel; index) {
+                finishBlock();
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * A record read from a segment.
+     * @param attachment Whether this is an attachment record, otherwise a message record.
+     * @param id The message or attachment ID.
+     * @param filename The attachment name, null for messages.
+     * @param size The size of the record data.
+     * @param data The record data, only readable until the next record is read.
+     */
+    public record Record(boolean attachment, Snowflake id, String filename, long size, InputStream data) {}
+
+    /**
+     * Reads the records of a segment in order.
+     */
+    public static class SegmentReader implements Closeable {
+        private final DataInputStream in;
+        private final long from;
+        private BoundedInputStream current;
+        private boolean skipping = true;
+
+        private SegmentReader(Path segment, long offset, long from) throws IOException {
+            this.from = from;
+            FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ);
+            try {
+                channel.position(offset);
+                // Compressed blocks are concatenated gzip members, they are read as a single stream
+                this.in = new DataInputStream(new GZIPInputStream(
+                        new BufferedInputStream(Channels.newInputStream(channel)), 64 * 1024));
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Read the next record, skipping the unread data of the previous one.
+         * @return The next record, or null at the end of the segment.
+         */
+        public Record next() throws IOException {
+            while (true) {
+                if (current != null) current.skipRemaining();
+                int type = in.read();
+                if (type < 0) return null;
+                Snowflake id = Snowflake.of(in.readLong());
+                String filename = null;
+                long size;
+                if (type == MESSAGE_RECORD) {
+                    size = in.readInt();
+                    skipping = id.asLong() < from;
+                } else if (type == ATTACHMENT_RECORD) {
+                    filename = in.readUTF();
+                    size = in.readLong();
+                } else {
+                    throw new IOException("Corrupted archive segment, unknown record type: "+type);
+                }
+                current = new BoundedInputStream(in, size);
+                // Attachments of skipped messages are skipped as well
+                if (!skipping) return new Record(type == ATTACHMENT_RECORD, id, filename, size, current);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long size) {
+            this.in = in;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        private void skipRemaining() throws IOException {
+            while (remaining > 0) {
+                long n = in.skip(remaining);
+                if (n <= 0) {
+                    if (in.read() < 0) throw new EOFException("Truncated archive segment");
+                    n = 1;
+                }
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            // The segment stream is closed by the reader
+        }
+    }
+}
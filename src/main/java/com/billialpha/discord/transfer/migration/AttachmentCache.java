@@ -0,0 +1,180 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An on-disk cache of downloaded attachments, bounded in size with least recently used eviction.
+ * <p>
+ *     Each attachment is stored in a file named after its attachment ID and the SHA-256 hash of its content
+ *     ({@code <id>-<sha256>}). The last modification time of a file records its last use,
+ *     so that the LRU order survives across runs.
+ * </p>
+ * <p>
+ *     An attachment in use (see {@link #acquire(Snowflake)}) is never evicted, even if this means
+ *     going over the size limit, until it is released.
+ * </p>
+ */
+public class AttachmentCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentCache.class);
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)-([0-9a-f]{64})");
+
+    private final Path directory;
+    private final long maxSize;
+    private final LinkedHashMap<Snowflake, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    private AttachmentCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Open a cache directory, indexing the attachments it already holds.
+     * @param directory The cache directory, created if missing.
+     * @param maxSize The maximum size of the cache, in bytes.
+     * @return The opened cache.
+     * @throws IOException If the directory cannot be created or listed.
+     */
+    public static AttachmentCache open(Path directory, long maxSize) throws IOException {
+        Files.createDirectories(directory);
+        AttachmentCache cache = new AttachmentCache(directory, maxSize);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(file); // Left over by an interrupted download
+                } else if (FILE_NAME.matcher(file.getFileName().toString()).matches()) {
+                    files.add(file);
+                }
+            }
+        }
+        // Oldest files first, so that the most recently used are at the end of the LRU order
+        Map<Path, FileTime> lastUse = new LinkedHashMap<>();
+        for (Path file : files) lastUse.put(file, Files.getLastModifiedTime(file));
+        files.sort(Comparator.comparing(lastUse::get));
+        for (Path file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+            if (!matcher.matches()) continue;
+            cache.add(Snowflake.of(matcher.group(1)), new Entry(file, Files.size(file)));
+        }
+        synchronized (cache) {
+            cache.evict();
+        }
+        LOGGER.debug("Loaded attachment cache "+directory+": "+cache.entries.size()+" files, "+cache.size+" bytes");
+        return cache;
+    }
+
+    private synchronized void add(Snowflake id, Entry entry) {
+        Entry previous = entries.put(id, entry);
+        if (previous != null) size -= previous.size;
+        size += entry.size;
+    }
+
+    /**
+     * Look up an attachment, preventing its eviction until it is released.
+     * @param id The attachment ID.
+     * @return The cached file, or empty if the attachment is not in cache.
+     */
+    public synchronized Optional<Path> acquire(Snowflake id) {
+        Entry entry = entries.get(id);
+        if (entry == null) return Optional.empty();
+        if (!Files.exists(entry.path)) {
+            // Removed behind our back
+            entries.remove(id);
+            size -= entry.size;
+            return Optional.empty();
+        }
+        entry.pins++;
+        try {
+            Files.setLastModifiedTime(entry.path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to update last use of cached attachment: "+entry.path, ex);
+        }
+        return Optional.of(entry.path);
+    }
+
+    /**
+     * Release an attachment previously acquired or stored, allowing its eviction.
+     * @param id The attachment ID.
+     */
+    public synchronized void release(Snowflake id) {
+        Entry entry = entries.get(id);
+        if (entry == null || entry.pins == 0) return;
+        entry.pins--;
+        if (size > maxSize) evict();
+    }
+
+    /**
+     * @return A new temporary file in the cache directory, to download an attachment into.
+     */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(directory, "download-", ".tmp");
+    }
+
+    /**
+     * Move a downloaded attachment into the cache. The stored attachment is acquired by the caller.
+     * @param id The attachment ID.
+     * @param tempFile The downloaded file, see {@link #createTempFile()}.
+     * @param hash The hex-encoded SHA-256 of the file content.
+     * @return The cached file.
+     */
+    public synchronized Path store(Snowflake id, Path tempFile, String hash) {
+        Path file = directory.resolve(id.asString()+"-"+hash);
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            Entry entry = new Entry(file, Files.size(file));
+            entry.pins = 1;
+            add(id, entry);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Unable to store attachment in cache: "+file, ex);
+        }
+        evict();
+        return file;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Snowflake, Entry>> iter = entries.entrySet().iterator();
+        while (size > maxSize && iter.hasNext()) {
+            Entry entry = iter.next().getValue();
+            if (entry.pins > 0) continue;
+            try {
+                Files.deleteIfExists(entry.path);
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to evict cached attachment: "+entry.path, ex);
+                continue;
+            }
+            iter.remove();
+            size -= entry.size;
+        }
+    }
+
+    private static class Entry {
+        private final Path path;
+        private final long size;
+        private int pins = 0;
+
+        private Entry(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.billialpha.discord.transfer.migration;
+
+import com.billialpha.discord.transfer.DiscordTransfer;
+import discord4j.common.util.Snowflake;
+import discord4j.core.object.entity.Attachment;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads message attachments from the Discord CDN without blocking.
+ * <p>
+ *     Downloads run on the event loop of a dedicated reactor-netty client, its connection pool bounds the number of
+ *     concurrent downloads for the whole migration, further downloads wait for a free connection.
+ *     Attachments are streamed to the {@link AttachmentCache} and only downloaded if they are not cached yet.
+ * </p>
+ * <p>
+ *     The attachments of a message reserve their total size in the {@link InFlightBudget} at once, before they are
+ *     fetched, each of them holding its share until it is closed: once the budget is spent, further downloads wait
+ *     for uploads to complete.
+ * </p>
+ */
+public class AttachmentDownloader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentDownloader.class);
+
+    private final HttpClient http;
+    private final int concurrency;
+    private final AttachmentCache cache;
+    private final Metrics metrics;
+    private final InFlightBudget budget;
+    private final Scheduler ioScheduler;
+
+    /**
+     * @param concurrency The maximum number of concurrent downloads.
+     * @param cache The cache in which downloaded attachments are stored.
+     * @param metrics The metrics recording downloads.
+     */
+    public AttachmentDownloader(int concurrency, AttachmentCache cache, Metrics metrics) {
+        this(concurrency, cache, metrics, InFlightBudget.unbounded(), Schedulers.boundedElastic());
+    }
+
+    /**
+     * @param concurrency The maximum number of concurrent downloads.
+     * @param cache The cache in which downloaded attachments are stored.
+     * @param metrics The metrics recording downloads.
+     * @param budget The budget in which attachments reserve their size until they are closed.
+     * @param ioScheduler The scheduler on which the cache is accessed and attachments are written to disk.
+     */
+    public AttachmentDownloader(int concurrency, AttachmentCache cache, Metrics metrics, InFlightBudget budget,
+                                Scheduler ioScheduler) {
+        this.concurrency = concurrency;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.budget = budget;
+        this.ioScheduler = ioScheduler;
+        this.http = HttpClient.create(ConnectionProvider.builder("attachments")
+                        .maxConnections(concurrency)
+                        .pendingAcquireMaxCount(-1)
+                        .build())
+                .followRedirect(true)
+                .headers(h -> h.set(HttpHeaderNames.USER_AGENT, "DiscordTransfer (v"+DiscordTransfer.VERSION+")"));
+    }
+
+    /**
+     * Fetch all the attachments of a message, concurrently.
+     * @param attachments The attachments to fetch.
+     * @return The cached files, in the order of the attachments, they should be closed once uploaded.
+     *         Failed downloads are logged and left out.
+     */
+    public Mono<List<CachedAttachment>> downloadAll(List<Attachment> attachments) {
+        return downloadAll(attachments, null);
+    }
+
+    /**
+     * Fetch all the attachments of a message, concurrently, once their total size is reserved.
+     * @param attachments The attachments to fetch.
+     * @param account The account of the channel of the message, null if not downloaded for a channel.
+     * @return The cached files, in the order of the attachments, they should be closed once uploaded.
+     *         Failed downloads are logged and left out.
+     */
+    public Mono<List<CachedAttachment>> downloadAll(List<Attachment> attachments, InFlightBudget.Account account) {
+        if (attachments.isEmpty()) return Mono.just(List.of());
+        long total = attachments.stream().mapToLong(Attachment::getSize).sum();
+        return budget.reserveBytes(account, total).flatMap(reserved -> {
+            // Share the reservation between the attachments, a capped reservation leaves the last ones without
+            long[] shares = new long[attachments.size()];
+            long left = reserved;
+            for (int i = 0; i < shares.length; i++) {
+                shares[i] = Math.min(attachments.get(i).getSize(), left);
+                left -= shares[i];
+            }
+            // Shares not handed over to a cached file are released once done, whatever happened to their download
+            AtomicLong pending = new AtomicLong(reserved);
+            return Flux.range(0, attachments.size())
+                    .flatMapSequential(i -> {
+                        Attachment att = attachments.get(i);
+                        return download(att.getId(), att.getFilename(), att.getUrl(), account, shares[i])
+                                .doOnNext(cached -> pending.addAndGet(-cached.reserved()));
+                    }, concurrency)
+                    .doOnDiscard(CachedAttachment.class, CachedAttachment::close)
+                    .collectList()
+                    .doFinally(signal -> budget.releaseBytes(account, pending.getAndSet(0)));
+        });
+    }
+
+    /**
+     * Fetch an attachment, from the cache if possible, otherwise from its URL.
+     * @param id The attachment ID.
+     * @param filename The attachment name.
+     * @param url The attachment URL.
+     * @return The cached file, it should be closed once uploaded.
+     */
+    public Mono<CachedAttachment> download(Snowflake id, String filename, String url) {
+        return download(id, filename, url, null, 0);
+    }
+
+    /**
+     * Fetch an attachment whose size is already reserved.
+     * @param account The account through which the size was reserved, null if none.
+     * @param reserved The number of bytes reserved, handed over to the cached file.
+     */
+    private Mono<CachedAttachment> download(Snowflake id, String filename, String url,
+                                            InFlightBudget.Account account, long reserved) {
+        return Mono.fromCallable(() -> cache.acquire(id))
+                .subscribeOn(ioScheduler)
+                .flatMap(cached -> cached
+                        .map(path -> {
+                            LOGGER.debug("Using cached attachment: "+path);
+                            return Mono.just(path);
+                        })
+                        .orElseGet(() -> fetch(id, url)))
+                .map(path -> new CachedAttachment(cache, id, filename, path, budget, account, reserved))
+                .onErrorResume(err -> {
+                    LOGGER.warn("Unable to forward attachment: "+url, err);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Use a local file as an attachment, it is not copied to the cache.
+     * @param id The attachment ID.
+     * @param filename The attachment name.
+     * @param path The attachment file.
+     * @return The attachment.
+     */
+    public CachedAttachment local(Snowflake id, String filename, Path path) {
+        // Releasing an attachment which is not in the cache has no effect
+        return new CachedAttachment(cache, id, filename, path, budget, null, 0);
+    }
+
+    /**
+     * Release a list of attachments fetched by this downloader.
+     */
+    public static void release(List<CachedAttachment> attachments) {
+        attachments.forEach(CachedAttachment::close);
+    }
+
+    private Mono<Path> fetch(Snowflake id, String url) {
+        long start = System.nanoTime();
+        return http.get()
+                .uri(url)
+                .response((response, body) -> {
+                    if (response.status().code()/100 == 2) {
+                        return Mono.using(() -> new PendingFile(cache.createTempFile()),
+                                file -> write(body, file).then(Mono.fromCallable(() -> {
+                                    metrics.attachmentDownloaded(System.nanoTime() - start, file.size);
+                                    return file.commit(id);
+                                })),
+                                PendingFile::discard);
+                    }
+                    // Decode error message
+                    return body.aggregate().asString()
+                            .defaultIfEmpty("")
+                            .doOnNext(error -> LOGGER.warn("Attachment HTTP error ("+response.status()+"):\n\t"
+                                    +error.replaceAll("\n", "\n\t")))
+                            .then(Mono.<Path>empty());
+                })
+                .next();
+    }
+
+    private Mono<Void> write(ByteBufFlux body, PendingFile file) {
+        // Buffers are retained so that they can be written to disk outside the event loop
+        return body.retain()
+                .publishOn(ioScheduler)
+                .doOnNext(buf -> {
+                    try {
+                        file.write(buf);
+                    } finally {
+                        buf.release();
+                    }
+                })
+                .doOnDiscard(ByteBuf.class, ReferenceCountUtil::safeRelease)
+                .then();
+    }
+
+    /**
+     * A temporary file being downloaded, hashed as it is written.
+     */
+    private class PendingFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long size;
+
+        private PendingFile(Path path) throws IOException, NoSuchAlgorithmException {
+            this.path = path;
+            this.digest = MessageDigest.getInstance("SHA-256");
+            this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        }
+
+        private void write(ByteBuf buf) {
+            ByteBuffer data = buf.nioBuffer();
+            digest.update(data.duplicate());
+            size += data.remaining();
+            try {
+                while (data.hasRemaining()) channel.write(data);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Unable to write attachment to disk: "+path, ex);
+            }
+        }
+
+        private Path commit(Snowflake id) throws IOException {
+            channel.close();
+            return cache.store(id, path, HexFormat.of().formatHex(digest.digest()));
+        }
+
+        private void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to delete temporary file: "+path, ex);
+            }
+        }
+    }
+}
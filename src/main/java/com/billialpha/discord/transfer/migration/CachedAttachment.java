@@ -0,0 +1,47 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.spec.MessageCreateFields;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An attachment held in the {@link AttachmentCache}, it cannot be evicted until it is closed.
+ * <p>
+ *     The attachment also holds its share of the {@link InFlightBudget}, {@code reserved} bytes reserved through
+ *     {@code account} (null if reserved for no channel), until it is closed.
+ * </p>
+ */
+public record CachedAttachment(
+        AttachmentCache cache,
+        Snowflake id,
+        String filename,
+        Path path,
+        InFlightBudget budget,
+        InFlightBudget.Account account,
+        long reserved
+) implements AutoCloseable {
+
+    /**
+     * Open the cached file for upload. The returned stream should be closed once the upload is done.
+     * @return A file to add to a message spec.
+     */
+    public MessageCreateFields.File open() {
+        try {
+            InputStream stream = Files.newInputStream(path);
+            return MessageCreateFields.File.of(filename, stream);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Unable to read cached attachment: "+path, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        cache.release(id);
+        budget.releaseBytes(account, reserved);
+    }
+}
@@ -0,0 +1,54 @@
+package com.billialpha.discord.transfer.migration;
+
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hands channels out to a fixed number of workers, largest first.
+ * <p>
+ *     Channels wait in a single queue instead of being split across rails up front: a worker takes the next channel
+ *     as soon as it is done with one, so a large channel never holds back the channels queued behind it.
+ *     Starting with the largest channels lets the small ones fill in around them, the total runtime gets close to
+ *     that of the largest channel.
+ * </p>
+ * <p>
+ *     Channels handled at the same time each prepare their own messages, they only compete for the in-flight budget,
+ *     which serves them round-robin (see {@link InFlightBudget}).
+ * </p>
+ */
+public class ChannelScheduler {
+    private final int concurrency;
+
+    /**
+     * @param concurrency The number of channels handled at the same time.
+     */
+    public ChannelScheduler(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Handle channels, at most {@code concurrency} at the same time, largest first.
+     * @param channels The channels to handle.
+     * @param size The estimated amount of work of a channel, evaluated once per channel.
+     * @param work The work on a channel.
+     * @return The results of every channel, as they are produced.
+     */
+    public <C, R> Flux<R> schedule(Collection<C> channels, ToLongFunction<C> size,
+                                   Function<? super C, ? extends Publisher<? extends R>> work) {
+        Map<C, Long> sizes = new HashMap<>();
+        for (C channel : channels) sizes.put(channel, size.applyAsLong(channel));
+        List<C> queue = new ArrayList<>(channels);
+        queue.sort(Comparator.comparing(sizes::get, Comparator.reverseOrder()));
+        // Channels are only taken from the queue once a worker is free
+        return Flux.fromIterable(queue).flatMap(work, concurrency, 1);
+    }
+}
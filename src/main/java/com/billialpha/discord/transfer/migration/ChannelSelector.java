@@ -0,0 +1,100 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.channel.Category;
+import discord4j.core.object.entity.channel.TextChannel;
+import discord4j.discordjson.json.ChannelData;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Selects the channels of a source guild from the category, included and skipped channels options.
+ */
+public class ChannelSelector {
+    private final Guild srcGuild;
+    private final Set<Snowflake> categories;
+    private final Set<Snowflake> includeChannels;
+    private final Set<Snowflake> skipChannels;
+
+    /**
+     * @param srcGuild The source guild.
+     * @param categories The selected categories, all categories if empty and no channel is included.
+     * @param includeChannels Channels explicitly included.
+     * @param skipChannels Channels explicitly excluded.
+     */
+    public ChannelSelector(
+            Guild srcGuild, Set<Snowflake> categories, Set<Snowflake> includeChannels, Set<Snowflake> skipChannels
+    ) {
+        this.srcGuild = srcGuild;
+        this.categories = categories;
+        this.includeChannels = includeChannels;
+        this.skipChannels = skipChannels;
+    }
+
+    /**
+     * The list of text channels to migrate.
+     * <p>
+     *     This list includes all text channels from the selected categories
+     *     (see {@link ChannelSelector#getSelectedCategories()} excluding skipped channels
+     *     to which explicitly included channels are added.
+     * </p>
+     * @return A flux of selected text channels in the source guild.
+     */
+    public Flux<TextChannel> getSelectedTextChannels() {
+        return Flux.concat(
+                getSelectedCategories()
+                        .flatMap(Category::getChannels)
+                        .ofType(TextChannel.class),
+                Mono.justOrEmpty(includeChannels)
+                        .flatMapMany(Flux::fromIterable)
+                        .flatMap(srcGuild::getChannelById)
+                        .ofType(TextChannel.class)
+        ).filter(c -> !skipChannels.contains(c.getId()));
+    }
+
+    /**
+     * The list of forum channels to migrate, selected as text channels are.
+     * @param threads The directory through which forum channels are listed.
+     * @return A flux of selected forum channels in the source guild.
+     */
+    public Flux<ChannelData> getSelectedForumChannels(ThreadDirectory threads) {
+        return getSelectedCategories()
+                .map(Category::getId)
+                .collect(Collectors.toSet())
+                .flatMapMany(selectedCategories -> threads.getForumChannels(srcGuild.getId())
+                        .filter(forum -> {
+                            Snowflake id = Snowflake.of(forum.id());
+                            if (skipChannels.contains(id)) return false;
+                            if (includeChannels.contains(id)) return true;
+                            return forum.parentId().toOptional().flatMap(p -> p)
+                                    .map(p -> selectedCategories.contains(Snowflake.of(p)))
+                                    .orElse(false);
+                        }));
+    }
+
+    /**
+     * The list of categories to migrate.
+     * <p>
+     *     If at least one category was specified in parameter then only return
+     *     explicitly selected categories, otherwise, and if no explicit channel are included,
+     *     return all categories present in the source guild.
+     * </p>
+     * @return A flux of selected categories in the source guild.
+     */
+    public Flux<Category> getSelectedCategories() {
+        return Mono.justOrEmpty(categories)
+                .flatMapMany(Flux::fromIterable)
+                .flatMap(srcGuild::getChannelById)
+                .ofType(Category.class)
+                // If no catagory was selected
+                .switchIfEmpty(includeChannels != null && includeChannels.size() > 0
+                        // But there are included channels, no categories
+                        ? Flux.empty()
+                        // Otherwise, return all existing categories
+                        : srcGuild.getChannels().ofType(Category.class));
+    }
+}
@@ -0,0 +1,270 @@
+package com.billialpha.discord.transfer.migration;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import discord4j.common.util.Snowflake;
+import discord4j.core.spec.EmbedCreateFields;
+import discord4j.core.spec.EmbedCreateSpec;
+import discord4j.rest.util.Color;
+import reactor.core.publisher.Flux;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Reads a channel dump in the JSON format of DiscordChatExporter, one message at a time.
+ * <p>
+ *     The file is read with a streaming parser: the header (the exported channel) is read when the dump is opened,
+ *     then each message is parsed on its own, so that the size of the dump does not matter.
+ *     The header is expected before the message list, as written by DiscordChatExporter.
+ * </p>
+ */
+public class ChatExportReader implements Closeable {
+    private static final Set<String> IMAGE_EXTENSIONS = Set.of("png", "jpg", "jpeg", "gif", "webp");
+
+    /**
+     * The exported channel.
+     * @param id The channel ID.
+     * @param category The name of the parent category, null for a top-level channel.
+     * @param name The channel name.
+     * @param topic The channel topic, may be null.
+     */
+    public record ExportedChannel(Snowflake id, String category, String name, String topic) {}
+
+    /**
+     * An exported attachment.
+     * @param id The attachment ID.
+     * @param filename The attachment name.
+     * @param url The attachment URL, or the path of the downloaded file relative to the dump.
+     * @param image Whether the attachment is an image.
+     */
+    public record ExportedAttachment(Snowflake id, String filename, String url, boolean image) {}
+
+    /**
+     * An exported message.
+     * @param id The message ID.
+     * @param type The message type ({@code Default}, {@code Reply}, ...).
+     * @param replyTo The message a reply refers to, null if this is not a reply to a message of the same channel.
+     * @param timestamp The message date.
+     * @param editedTimestamp The date of the last edit, null if it was not edited.
+     * @param content The message content.
+     * @param authorName The author name.
+     * @param authorAvatarUrl The author avatar.
+     * @param authorBot Whether the author is a bot.
+     * @param attachments The message attachments.
+     * @param embeds The message embeds, ready to be reposted.
+     */
+    public record ExportedMessage(
+            Snowflake id,
+            String type,
+            Snowflake replyTo,
+            Instant timestamp,
+            Instant editedTimestamp,
+            String content,
+            String authorName,
+            String authorAvatarUrl,
+            boolean authorBot,
+            List<ExportedAttachment> attachments,
+            List<EmbedCreateSpec> embeds
+    ) {}
+
+    private final Path path;
+    private final ObjectMapper mapper;
+    private final JsonParser parser;
+    private ExportedChannel channel;
+    private boolean done;
+
+    private ChatExportReader(Path path, ObjectMapper mapper, JsonParser parser) {
+        this.path = path;
+        this.mapper = mapper;
+        this.parser = parser;
+    }
+
+    /**
+     * Open a dump and read its header.
+     * @param path The dump file.
+     * @param mapper The mapper used to parse messages.
+     * @return A reader positioned on the first message.
+     * @throws IOException If the file cannot be read or is not a dump.
+     */
+    public static ChatExportReader open(Path path, ObjectMapper mapper) throws IOException {
+        JsonParser parser = mapper.getFactory().createParser(path.toFile());
+        ChatExportReader reader = new ChatExportReader(path, mapper, parser);
+        try {
+            reader.readHeader();
+        } catch (IOException | RuntimeException ex) {
+            parser.close();
+            throw ex;
+        }
+        return reader;
+    }
+
+    private void readHeader() throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+            throw new IOException("Not a chat export: "+path);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("messages") && value == JsonToken.START_ARRAY) return;
+            if (field.equals("channel") && value == JsonToken.START_OBJECT) {
+                JsonNode node = mapper.readTree(parser);
+                channel = new ExportedChannel(Snowflake.of(node.path("id").asText()),
+                        text(node, "category"), node.path("name").asText(), text(node, "topic"));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        done = true; // No message
+    }
+
+    /**
+     * @return The exported channel, null if the dump has no channel header.
+     */
+    public ExportedChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return The directory of the dump, against which local attachment paths are resolved.
+     */
+    public Path getDirectory() {
+        return path.toAbsolutePath().getParent();
+    }
+
+    /**
+     * Read the next message.
+     * @return The next message, or null once all messages were read.
+     * @throws IOException If the dump cannot be read.
+     */
+    public ExportedMessage next() throws IOException {
+        if (done) return null;
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            done = true;
+            return null;
+        }
+        return toMessage(mapper.readTree(parser));
+    }
+
+    /**
+     * The messages of the dump, read on demand.
+     */
+    public Flux<ExportedMessage> messages() {
+        return Flux.generate(sink -> {
+            try {
+                ExportedMessage m = next();
+                if (m == null) sink.complete();
+                else sink.next(m);
+            } catch (IOException | RuntimeException ex) {
+                sink.error(ex);
+            }
+        });
+    }
+
+    private ExportedMessage toMessage(JsonNode node) {
+        JsonNode author = node.path("author");
+        List<ExportedAttachment> attachments = new ArrayList<>();
+        for (JsonNode att : node.path("attachments")) {
+            String filename = att.path("fileName").asText();
+            int ext = filename.lastIndexOf('.');
+            attachments.add(new ExportedAttachment(Snowflake.of(att.path("id").asText()), filename,
+                    att.path("url").asText(),
+                    ext >= 0 && IMAGE_EXTENSIONS.contains(filename.substring(ext + 1).toLowerCase(Locale.ROOT))));
+        }
+        List<EmbedCreateSpec> embeds = new ArrayList<>();
+        for (JsonNode embed : node.path("embeds")) {
+            embeds.add(toEmbed(embed));
+        }
+        Snowflake id = Snowflake.of(node.path("id").asText());
+        Instant timestamp = instant(node, "timestamp");
+        return new ExportedMessage(
+                id,
+                node.path("type").asText("Default"),
+                replyTo(node),
+                // The creation date is also held by the message ID
+                timestamp != null ? timestamp : id.getTimestamp(),
+                instant(node, "timestampEdited"),
+                node.path("content").asText(""),
+                author.path("name").asText(),
+                text(author, "avatarUrl"),
+                author.path("isBot").asBoolean(false),
+                attachments,
+                embeds);
+    }
+
+    private Snowflake replyTo(JsonNode node) {
+        JsonNode reference = node.path("reference");
+        String messageId = text(reference, "messageId");
+        String channelId = text(reference, "channelId");
+        if (messageId == null) return null;
+        // Replies to messages of another channel cannot be reposted as replies
+        if (channelId != null && channel != null && !channelId.equals(channel.id().asString())) return null;
+        return Snowflake.of(messageId);
+    }
+
+    private static EmbedCreateSpec toEmbed(JsonNode node) {
+        EmbedCreateSpec.Builder embed = EmbedCreateSpec.builder();
+        JsonNode author = node.path("author");
+        if (text(author, "name") != null) embed.author(author.path("name").asText(),
+                text(author, "url"), text(author, "iconUrl"));
+        if (text(node, "title") != null) embed.title(node.path("title").asText());
+        if (text(node, "url") != null) embed.url(node.path("url").asText());
+        Color color = color(text(node, "color"));
+        if (color != null) embed.color(color);
+        if (text(node.path("thumbnail"), "url") != null) embed.thumbnail(node.path("thumbnail").path("url").asText());
+        if (text(node, "description") != null) embed.description(node.path("description").asText());
+        if (text(node.path("image"), "url") != null) embed.image(node.path("image").path("url").asText());
+        for (JsonNode field : node.path("fields")) {
+            embed.addField(EmbedCreateFields.Field.of(field.path("name").asText(), field.path("value").asText(),
+                    field.path("isInline").asBoolean(false)));
+        }
+        Instant timestamp = instant(node, "timestamp");
+        if (timestamp != null) embed.timestamp(timestamp);
+        JsonNode footer = node.path("footer");
+        if (text(footer, "text") != null) embed.footer(footer.path("text").asText(), text(footer, "iconUrl"));
+        return embed.build();
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.path(field);
+        return value.isTextual() && !value.asText().isEmpty() ? value.asText() : null;
+    }
+
+    /**
+     * @return The color of a {@code #rrggbb} hex code, an alpha channel being ignored, or null if malformed.
+     */
+    private static Color color(String hex) {
+        if (hex == null || !hex.startsWith("#") || (hex.length() != 7 && hex.length() != 9)) return null;
+        for (int i = 1; i < hex.length(); i++) {
+            if (Character.digit(hex.charAt(i), 16) < 0) return null;
+        }
+        return Color.of(Integer.parseInt(hex, 1, 7, 16));
+    }
+
+    /**
+     * @return The instant of an ISO-8601 date with an offset, or null if missing or malformed.
+     */
+    private static Instant instant(JsonNode node, String field) {
+        String value = text(node, field);
+        if (value == null) return null;
+        try {
+            return OffsetDateTime.parse(value).toInstant();
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,185 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.spec.EmbedCreateSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Rewrites the references of a message content to a destination guild, in a single pass over the content.
+ * <p>
+ *     Channel mentions ({@code <#id>}) and message links ({@code https://discord.com/channels/guild/channel/message})
+ *     pointing at the source guild are mapped to the destination channels and messages, role mentions
+ *     ({@code <@&id>}) to the destination roles. Role mentions which cannot be mapped are removed, other references
+ *     which cannot be mapped are left untouched. A content without anything to rewrite is returned as is, without
+ *     allocating.
+ * </p>
+ */
+public class ContentRewriter {
+    private static final String[] LINK_HOSTS = {
+            "discord.com", "ptb.discord.com", "canary.discord.com", "discordapp.com"
+    };
+    private static final String LINK_SCHEME = "https://";
+    private static final String LINK_PATH = "/channels/";
+    /** The maximum number of digits of a snowflake. */
+    private static final int MAX_ID_LENGTH = 20;
+
+    private final Snowflake srcGuild;
+    private final Snowflake dstGuild;
+    private final Map<Snowflake, Snowflake> channels;
+    private final Map<Snowflake, Snowflake> roles;
+    private final MigrationJournal journal;
+
+    /**
+     * @param srcGuild The source guild, null if unknown: message links are then left untouched.
+     * @param dstGuild The destination guild.
+     * @param channels The destination channel of each migrated source channel.
+     * @param roles The destination role of each source role.
+     * @param journal The journal of the destination guild, mapping migrated messages.
+     */
+    public ContentRewriter(Snowflake srcGuild, Snowflake dstGuild, Map<Snowflake, Snowflake> channels,
+                           Map<Snowflake, Snowflake> roles, MigrationJournal journal) {
+        this.srcGuild = srcGuild;
+        this.dstGuild = dstGuild;
+        this.channels = channels;
+        this.roles = roles;
+        this.journal = journal;
+    }
+
+    /**
+     * Rewrite the content and embeds of a prepared message.
+     * <p>
+     *     A rewritten text is dropped in favor of the original one if it no longer fits in its Discord limit.
+     * </p>
+     * @return The rewritten message, or the same message if nothing was rewritten.
+     */
+    public PreparedMessage rewrite(PreparedMessage msg) {
+        String content = msg.content();
+        if (content != null) {
+            String rewritten = rewrite(content);
+            if (rewritten.length() <= MessageLayout.MAX_CONTENT_LENGTH) content = rewritten;
+        }
+        List<EmbedCreateSpec> embeds = null;
+        int length = 0;
+        for (int i = 0; i < msg.embeds().size(); i++) {
+            EmbedCreateSpec embed = msg.embeds().get(i);
+            EmbedCreateSpec rewritten = rewrite(embed);
+            if (rewritten != embed && embeds == null) embeds = new ArrayList<>(msg.embeds().subList(0, i));
+            if (embeds != null) embeds.add(rewritten);
+            length += MessageLayout.length(rewritten);
+        }
+        if (embeds != null && length > MessageLayout.MAX_EMBEDS_LENGTH) embeds = null;
+        if (content == msg.content() && embeds == null) return msg;
+        return new PreparedMessage(msg.channelId(), msg.id(), msg.packedIds(), msg.replyTo(), msg.authorName(),
+                msg.authorAvatarUrl(), msg.timestamp(), content, embeds != null ? embeds : msg.embeds(),
+                msg.attachments());
+    }
+
+    private EmbedCreateSpec rewrite(EmbedCreateSpec embed) {
+        String description = embed.description().toOptional().orElse(null);
+        if (description == null) return embed;
+        String rewritten = rewrite(description);
+        if (rewritten == description || rewritten.length() > MessageLayout.MAX_DESCRIPTION_LENGTH) return embed;
+        return embed.withDescription(rewritten);
+    }
+
+    /**
+     * Rewrite the references of a text.
+     * @return The rewritten text, or the same instance if nothing was rewritten.
+     */
+    public String rewrite(String content) {
+        StringBuilder out = null;
+        int copied = 0;
+        int length = content.length();
+        for (int i = 0; i < length; i++) {
+            char c = content.charAt(i);
+            if (c == '<') {
+                // Mention: <#channel> or <@&role>
+                boolean role = content.startsWith("@&", i + 1);
+                if (!role && !content.startsWith("#", i + 1)) continue;
+                int idStart = i + (role ? 3 : 2);
+                int idEnd = idEnd(content, idStart);
+                if (idEnd == idStart || idEnd >= length || content.charAt(idEnd) != '>') continue;
+                Snowflake id = parseId(content, idStart, idEnd);
+                if (id == null) continue;
+                Snowflake mapped = role ? roles.get(id) : channels.get(id);
+                if (mapped == null && !role) continue;
+                if (out == null) out = new StringBuilder(length + 16);
+                out.append(content, copied, i);
+                if (mapped != null) out.append(role ? "<@&" : "<#").append(mapped.asString()).append('>');
+                copied = idEnd + 1;
+                i = idEnd;
+            } else if (c == 'h' && content.startsWith(LINK_SCHEME, i)) {
+                // Link: https://discord.com/channels/<guild>/<channel>[/<message>]
+                int pathStart = linkPathStart(content, i + LINK_SCHEME.length());
+                if (pathStart < 0) continue;
+                int guildStart = pathStart + LINK_PATH.length();
+                int guildEnd = idEnd(content, guildStart);
+                if (guildEnd == guildStart || guildEnd >= length || content.charAt(guildEnd) != '/') continue;
+                if (srcGuild == null || !srcGuild.equals(parseId(content, guildStart, guildEnd))) continue;
+                int channelEnd = idEnd(content, guildEnd + 1);
+                Snowflake channel = parseId(content, guildEnd + 1, channelEnd);
+                Snowflake mappedChannel = channel != null ? channels.get(channel) : null;
+                if (mappedChannel == null) continue;
+                int end = channelEnd;
+                Snowflake mappedMessage = null;
+                if (channelEnd < length && content.charAt(channelEnd) == '/') {
+                    int messageEnd = idEnd(content, channelEnd + 1);
+                    Snowflake message = parseId(content, channelEnd + 1, messageEnd);
+                    if (message != null) {
+                        Optional<Snowflake> dst = journal.getDestination(message);
+                        if (dst.isEmpty()) continue; // Not migrated, the source message remains the best target
+                        mappedMessage = dst.get();
+                        end = messageEnd;
+                    }
+                }
+                if (out == null) out = new StringBuilder(length + 16);
+                out.append(content, copied, guildStart)
+                        .append(dstGuild.asString()).append('/').append(mappedChannel.asString());
+                if (mappedMessage != null) out.append('/').append(mappedMessage.asString());
+                copied = end;
+                i = end - 1;
+            }
+        }
+        if (out == null) return content;
+        return out.append(content, copied, length).toString();
+    }
+
+    /**
+     * @param hostStart The index following the link scheme.
+     * @return The index of the channels path of a Discord link, or -1 if this is not a Discord link.
+     */
+    private static int linkPathStart(String content, int hostStart) {
+        for (String host : LINK_HOSTS) {
+            if (content.startsWith(host, hostStart)
+                    && content.startsWith(LINK_PATH, hostStart + host.length()))
+                return hostStart + host.length();
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index following the digits starting at the given index.
+     */
+    private static int idEnd(String content, int start) {
+        int i = start;
+        while (i < content.length() && i - start <= MAX_ID_LENGTH) {
+            char c = content.charAt(i);
+            if (c < '0' || c > '9') break;
+            i++;
+        }
+        return i;
+    }
+
+    private static Snowflake parseId(String content, int start, int end) {
+        if (end == start || end - start > MAX_ID_LENGTH) return null;
+        try {
+            return Snowflake.of(Long.parseUnsignedLong(content, start, end, 10));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.billialpha.discord.transfer.migration;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * A budget of source messages and attachment bytes in flight, shared by every channel of a run.
+ * <p>
+ *     Messages are reserved as they are fetched and released once posted or dropped, attachment bytes are reserved
+ *     before they are downloaded and released once uploaded. Reservations which do not fit wait for earlier ones to
+ *     be released (messages and bytes each in their own queue, a message being fetched before its attachments),
+ *     so that fetching and downloading are backpressured by the budget and the memory held by a run stays bounded
+ *     whatever the content of the channels.
+ * </p>
+ * <p>
+ *     Waiting channels are served round-robin. A channel fetches its messages one at a time, message waiters are
+ *     served in the order they were requested. A channel prepares several messages at the same time, so each bytes
+ *     reservation takes the next turn of its channel: a channel downloading the attachments of many messages only
+ *     gets one reservation granted per turn, the other channels getting theirs in between.
+ * </p>
+ * <p>
+ *     A channel may keep a message aside while waiting for the next one (see {@link MessagePacker}): an account
+ *     holding at most one message is always granted one more, so that every channel keeps moving.
+ *     The attachments of a message are reserved at once, a message never holds part of its attachments while
+ *     waiting for the others. The first bytes waiter of an account holding no bytes is granted even if it does not
+ *     fit, as no release of its own channel would ever make room for it. A reservation larger than the whole budget
+ *     is capped to the budget.
+ * </p>
+ */
+public class InFlightBudget {
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ArrayDeque<Waiter> messageWaiters = new ArrayDeque<>();
+    /** Ordered by turn, then in the order they were requested. */
+    private final LinkedList<Waiter> byteWaiters = new LinkedList<>();
+    private int messages;
+    private long bytes;
+    /** The turn of the last bytes reservation granted. */
+    private long turn;
+
+    /**
+     * @param maxMessages The maximum number of source messages in flight.
+     * @param maxBytes The maximum number of attachment bytes in flight.
+     */
+    public InFlightBudget(int maxMessages, long maxBytes) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * @return A budget which never waits.
+     */
+    public static InFlightBudget unbounded() {
+        return new InFlightBudget(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return A new account, through which a channel reserves its messages.
+     */
+    public Account newAccount() {
+        return new Account();
+    }
+
+    /**
+     * Reserve attachment bytes, once they fit in the budget.
+     * @param account The account of the channel reserving the bytes, null if not reserved for a channel.
+     * @param size The number of bytes to reserve.
+     * @return The number of bytes actually reserved, to be released with {@link #releaseBytes(Account, long)}.
+     *         It is capped to the whole budget.
+     */
+    public Mono<Long> reserveBytes(Account account, long size) {
+        long reserved = Math.min(Math.max(0, size), maxBytes);
+        if (reserved == 0) return Mono.just(0L);
+        return reserve(account, 0, reserved).thenReturn(reserved);
+    }
+
+    /**
+     * Release attachment bytes previously reserved.
+     * @param account The account the bytes were reserved through, null if none.
+     */
+    public void releaseBytes(Account account, long size) {
+        if (size > 0) release(account, 0, size);
+    }
+
+    private Mono<Void> reserve(Account account, int count, long size) {
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(account, count, size, sink);
+            sink.onCancel(() -> cancel(waiter));
+            boolean granted;
+            synchronized (this) {
+                if (size > 0) waiter.turn = nextTurn(account);
+                Collection<Waiter> waiters = size > 0 ? byteWaiters : messageWaiters;
+                granted = waiters.isEmpty() && fits(waiter) || overdraft(waiter, waiters.isEmpty());
+                if (granted) take(waiter);
+                else if (size > 0) enqueueByTurn(waiter);
+                else waiters.add(waiter);
+            }
+            if (granted) sink.success();
+        });
+    }
+
+    /**
+     * The turn of the next bytes reservation of an account, never before the turn being served.
+     */
+    private long nextTurn(Account account) {
+        if (account == null) return turn;
+        long next = Math.max(account.nextTurn, turn);
+        account.nextTurn = next + 1;
+        return next;
+    }
+
+    private void enqueueByTurn(Waiter waiter) {
+        ListIterator<Waiter> iter = byteWaiters.listIterator(byteWaiters.size());
+        while (iter.hasPrevious()) {
+            if (iter.previous().turn <= waiter.turn) {
+                iter.next();
+                break;
+            }
+        }
+        iter.add(waiter);
+    }
+
+    private void release(Account account, int count, long size) {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            if (account != null) {
+                // Messages are only released once, even if they outlive a closed account
+                count = Math.min(count, account.held);
+                account.held -= count;
+                account.heldBytes -= size;
+            }
+            messages -= count;
+            bytes -= size;
+            grant(count > 0 ? messageWaiters : byteWaiters, granted);
+        }
+        granted.forEach(waiter -> waiter.sink.success());
+    }
+
+    /**
+     * Grant waiters in order, until one does not fit, waiters of accounts in overdraft are always granted.
+     */
+    private void grant(Collection<Waiter> waiters, List<Waiter> granted) {
+        boolean blocked = false;
+        for (Iterator<Waiter> iter = waiters.iterator(); iter.hasNext(); ) {
+            Waiter waiter = iter.next();
+            // Until a waiter is left waiting, the waiter is the head of the queue
+            if (!blocked && fits(waiter) || overdraft(waiter, !blocked)) {
+                iter.remove();
+                take(waiter);
+                granted.add(waiter);
+            } else {
+                blocked = true;
+            }
+        }
+    }
+
+    private void cancel(Waiter waiter) {
+        boolean held;
+        synchronized (this) {
+            held = waiter.granted;
+            (waiter.bytes > 0 ? byteWaiters : messageWaiters).remove(waiter);
+        }
+        // Granted, but the reservation was cancelled before it was received
+        if (held) release(waiter.account, waiter.messages, waiter.bytes);
+    }
+
+    private boolean fits(Waiter waiter) {
+        // Messages may be in overdraft, a waiter only needs room for what it reserves
+        return (waiter.messages == 0 || waiter.messages <= maxMessages - messages)
+                && (waiter.bytes == 0 || waiter.bytes <= maxBytes - bytes);
+    }
+
+    /**
+     * @param head Whether the waiter is first in its queue.
+     */
+    private boolean overdraft(Waiter waiter, boolean head) {
+        if (waiter.account == null) return false;
+        if (waiter.bytes > 0) return head && waiter.account.heldBytes == 0;
+        return waiter.account.held <= 1;
+    }
+
+    private void take(Waiter waiter) {
+        waiter.granted = true;
+        if (waiter.bytes > 0) turn = Math.max(turn, waiter.turn);
+        // Bytes are held by attachments, which release them even once the account is closed
+        bytes += waiter.bytes;
+        if (waiter.account != null) waiter.account.heldBytes += waiter.bytes;
+        // Nothing will release the messages of a closed account
+        if (waiter.account != null && waiter.account.closed) return;
+        messages += waiter.messages;
+        if (waiter.account != null) waiter.account.held += waiter.messages;
+    }
+
+    /**
+     * The share of the budget used by a channel.
+     */
+    public class Account {
+        /** The number of messages held by this account, guarded by the budget. */
+        private int held;
+        /** The number of attachment bytes held by this account, guarded by the budget. */
+        private long heldBytes;
+        /** The turn of the next bytes reservation of this account, guarded by the budget. */
+        private long nextTurn;
+        private boolean closed;
+
+        private Account() {}
+
+        /**
+         * Reserve a source message, once it fits in the budget.
+         */
+        public Mono<Void> reserveMessage() {
+            return reserve(this, 1, 0);
+        }
+
+        /**
+         * Reserve the attachment bytes of a message, once they fit in the budget.
+         * @see InFlightBudget#reserveBytes(Account, long)
+         */
+        public Mono<Long> reserveBytes(long size) {
+            return InFlightBudget.this.reserveBytes(this, size);
+        }
+
+        /**
+         * Release source messages previously reserved through this account.
+         */
+        public void releaseMessages(int count) {
+            if (count > 0) release(this, count, 0);
+        }
+
+        /**
+         * Release all the messages still held by this account, once its channel is done.
+         * <p>
+         *     Messages a cancelled channel was still holding are released, those released later are ignored.
+         * </p>
+         */
+        public void close() {
+            synchronized (InFlightBudget.this) {
+                closed = true;
+            }
+            release(this, Integer.MAX_VALUE, 0);
+        }
+    }
+
+    private static class Waiter {
+        private final Account account;
+        private final int messages;
+        private final long bytes;
+        private final MonoSink<Void> sink;
+        private long turn;
+        private boolean granted;
+
+        private Waiter(Account account, int messages, long bytes, MonoSink<Void> sink) {
+            this.account = account;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.sink = sink;
+        }
+    }
+}
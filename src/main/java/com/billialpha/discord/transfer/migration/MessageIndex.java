@@ -0,0 +1,272 @@
+package com.billialpha.discord.transfer.migration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An open-addressing map of source message IDs to destination message IDs, stored as primitive longs.
+ * <p>
+ *     Entries are interleaved key and value slots, probed linearly. Snowflakes are never 0, which marks empty slots.
+ *     The table starts on the heap and, once it outgrows the heap limit, moves to a memory-mapped file and keeps
+ *     growing there, paged in and out by the OS instead of weighing on the heap.
+ * </p>
+ * <p>
+ *     The spill file is scratch space: it is unlinked as soon as it is mapped, the index being rebuilt from the
+ *     journal when it is loaded. A mapped table is unmapped as soon as it is replaced by a larger one, rather than
+ *     whenever the garbage collector gets to its buffers, so that only one table is mapped at a time.
+ *     This class is not thread-safe.
+ * </p>
+ */
+public class MessageIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageIndex.class);
+    private static final int MIN_CAPACITY = 1024;
+    /** The maximum number of slots in the table, 16 GB once mapped. */
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final Path spillDir;
+    private final int maxHeapCapacity;
+    private Table table;
+    private int size;
+
+    /**
+     * @param spillDir The directory in which the table is mapped once it outgrows the heap.
+     * @param maxHeapCapacity The maximum number of slots of the table on the heap, 16 bytes each.
+     */
+    public MessageIndex(Path spillDir, int maxHeapCapacity) {
+        this.spillDir = spillDir;
+        this.maxHeapCapacity = maxHeapCapacity;
+        this.table = new HeapTable(MIN_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The value mapped to a key, or 0 if the key is absent.
+     */
+    public long get(long key) {
+        Table t = table;
+        int mask = t.capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = t.key(slot);
+            if (k == key) return t.value(slot);
+            if (k == 0) return 0;
+        }
+    }
+
+    public boolean contains(long key) {
+        return get(key) != 0;
+    }
+
+    /**
+     * Map a key to a value, replacing the previous value of the key.
+     * @param key The key, not 0.
+     * @param value The value.
+     */
+    public void put(long key, long value) {
+        if (key == 0) throw new IllegalArgumentException("Invalid key: 0");
+        if (insert(table, key, value)) {
+            size++;
+            if (size > table.capacity * LOAD_FACTOR) grow();
+        }
+    }
+
+    /**
+     * @return Whether the key was added, rather than updated.
+     */
+    private static boolean insert(Table t, long key, long value) {
+        int mask = t.capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = t.key(slot);
+            if (k == 0) {
+                t.set(slot, key, value);
+                return true;
+            }
+            if (k == key) {
+                t.set(slot, key, value);
+                return false;
+            }
+        }
+    }
+
+    private void grow() {
+        if (table.capacity >= MAX_CAPACITY) throw new IllegalStateException("Message index is full");
+        int capacity = table.capacity << 1;
+        Table grown = capacity <= maxHeapCapacity ? new HeapTable(capacity) : new MappedTable(spillDir, capacity);
+        if (grown instanceof MappedTable && table instanceof HeapTable)
+            LOGGER.debug("Spilling message index of "+size+" entries to "+spillDir);
+        for (int slot = 0; slot < table.capacity; slot++) {
+            long key = table.key(slot);
+            if (key != 0) insert(grown, key, table.value(slot));
+        }
+        Table previous = table;
+        table = grown;
+        previous.release();
+    }
+
+    /**
+     * Release the table, unmapping it if it was spilled, the index is empty afterwards.
+     */
+    public void close() {
+        Table previous = table;
+        table = new HeapTable(MIN_CAPACITY);
+        size = 0;
+        previous.release();
+    }
+
+    private static int hash(long key) {
+        // Snowflakes share their high bits, mix them all into the low bits used as the slot
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private abstract static class Table {
+        protected final int capacity;
+
+        private Table(int capacity) {
+            this.capacity = capacity;
+        }
+
+        abstract long key(int slot);
+
+        abstract long value(int slot);
+
+        abstract void set(int slot, long key, long value);
+
+        /**
+         * Release the memory of the table, it must not be used afterwards.
+         */
+        void release() {}
+    }
+
+    private static class HeapTable extends Table {
+        private final long[] slots;
+
+        private HeapTable(int capacity) {
+            super(capacity);
+            this.slots = new long[capacity * 2];
+        }
+
+        @Override
+        long key(int slot) {
+            return slots[slot << 1];
+        }
+
+        @Override
+        long value(int slot) {
+            return slots[(slot << 1) + 1];
+        }
+
+        @Override
+        void set(int slot, long key, long value) {
+            slots[slot << 1] = key;
+            slots[(slot << 1) + 1] = value;
+        }
+    }
+
+    /**
+     * A table mapped from an unlinked file, in segments of at most 1 GB.
+     * <p>
+     *     Segments are unmapped through {@code sun.misc.Unsafe.invokeCleaner}, the only way to unmap a buffer before
+     *     it is collected. Without it, released segments are left to the garbage collector.
+     * </p>
+     */
+    private static class MappedTable extends Table {
+        private static final int SEGMENT_BITS = 26;
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                LOGGER.debug("Unable to unmap buffers, mapped message indexes are left to the garbage collector", ex);
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        /** The mapped buffers, kept to be unmapped, the slots are accessed through their long views. */
+        private final MappedByteBuffer[] mappings;
+        private final LongBuffer[] segments;
+        private final int segmentMask;
+
+        private MappedTable(Path dir, int capacity) {
+            super(capacity);
+            int segmentSlots = Math.min(capacity, 1 << SEGMENT_BITS);
+            this.mappings = new MappedByteBuffer[capacity / segmentSlots];
+            this.segments = new LongBuffer[mappings.length];
+            this.segmentMask = segmentSlots - 1;
+            try {
+                Path file = Files.createTempFile(dir, "message-index", ".tmp");
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE)) {
+                    long segmentBytes = (long) segmentSlots * 2 * Long.BYTES;
+                    for (int i = 0; i < segments.length; i++) {
+                        // Mapping past the end of the file extends it with zeros, that is empty slots
+                        mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentBytes, segmentBytes);
+                        segments[i] = mappings[i].asLongBuffer();
+                    }
+                }
+            } catch (IOException ex) {
+                release();
+                throw new UncheckedIOException("Unable to map message index in "+dir, ex);
+            }
+        }
+
+        @Override
+        void release() {
+            for (int i = 0; i < mappings.length; i++) {
+                if (mappings[i] == null) continue;
+                if (INVOKE_CLEANER != null) {
+                    try {
+                        INVOKE_CLEANER.invoke(UNSAFE, mappings[i]);
+                    } catch (ReflectiveOperationException ex) {
+                        LOGGER.debug("Unable to unmap message index segment", ex);
+                    }
+                }
+                mappings[i] = null;
+                segments[i] = null;
+            }
+        }
+
+        @Override
+        long key(int slot) {
+            return segments[slot >>> SEGMENT_BITS].get((slot & segmentMask) << 1);
+        }
+
+        @Override
+        long value(int slot) {
+            return segments[slot >>> SEGMENT_BITS].get(((slot & segmentMask) << 1) + 1);
+        }
+
+        @Override
+        void set(int slot, long key, long value) {
+            LongBuffer segment = segments[slot >>> SEGMENT_BITS];
+            int offset = (slot & segmentMask) << 1;
+            segment.put(offset, key);
+            segment.put(offset + 1, value);
+        }
+    }
+}
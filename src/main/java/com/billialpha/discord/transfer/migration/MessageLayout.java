@@ -0,0 +1,123 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.core.spec.EmbedCreateFields;
+import discord4j.core.spec.EmbedCreateSpec;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the embeds through which a message is reposted by the bot.
+ * <p>
+ *     The message content is posted in an embed signed with the original author and date. Attachments which are not
+ *     re-uploaded are linked: the first image is displayed in the message embed, other images and files get an
+ *     embed of their own.
+ * </p>
+ */
+public final class MessageLayout {
+    /**
+     * The maximum length of a message content.
+     */
+    public static final int MAX_CONTENT_LENGTH = 2000;
+    /**
+     * The maximum number of embeds in a message.
+     */
+    public static final int MAX_EMBEDS = 10;
+    /**
+     * The maximum length of an embed description.
+     */
+    public static final int MAX_DESCRIPTION_LENGTH = 4096;
+    /**
+     * The maximum total length of the embeds of a message.
+     */
+    public static final int MAX_EMBEDS_LENGTH = 6000;
+
+    /**
+     * An attachment linked instead of being re-uploaded.
+     * @param filename The attachment name.
+     * @param url The attachment URL.
+     * @param image Whether the attachment is an image.
+     */
+    public record LinkedAttachment(String filename, String url, boolean image) {}
+
+    private MessageLayout() {}
+
+    /**
+     * The length of an embed, as counted by Discord against {@link #MAX_EMBEDS_LENGTH}.
+     */
+    public static int length(EmbedCreateSpec embed) {
+        int length = embed.title().toOptional().map(String::length).orElse(0)
+                + embed.description().toOptional().map(String::length).orElse(0);
+        EmbedCreateFields.Author author = embed.author();
+        if (author != null) length += author.name().length();
+        EmbedCreateFields.Footer footer = embed.footer();
+        if (footer != null) length += footer.text().length();
+        for (EmbedCreateFields.Field field : embed.fields()) {
+            length += field.name().length() + field.value().length();
+        }
+        return length;
+    }
+
+    /**
+     * Build the embeds of a message posted under the name of its author, its content is not part of the embeds.
+     * @param links The attachments to link.
+     * @param embeds The embeds of the original message, appended after the attachments.
+     * @return The embeds to post.
+     */
+    public static List<EmbedCreateSpec> buildUnsigned(List<LinkedAttachment> links, List<EmbedCreateSpec> embeds) {
+        List<EmbedCreateSpec> result = new ArrayList<>(links.size() + embeds.size());
+        for (LinkedAttachment att : links) {
+            result.add(att.image()
+                    ? EmbedCreateSpec.builder().image(att.url()).build()
+                    : EmbedCreateSpec.builder().title(att.filename()).url(att.url()).build());
+        }
+        result.addAll(embeds);
+        return result;
+    }
+
+    /**
+     * Build the embeds of a message.
+     * @param authorName The name of the original author.
+     * @param authorAvatarUrl The avatar of the original author.
+     * @param timestamp The date of the original message.
+     * @param content The message content.
+     * @param links The attachments to link.
+     * @param embeds The embeds of the original message, appended after the message embeds.
+     * @return The embeds to post.
+     */
+    public static List<EmbedCreateSpec> build(
+            String authorName, String authorAvatarUrl, Instant timestamp, String content,
+            List<LinkedAttachment> links, List<EmbedCreateSpec> embeds
+    ) {
+        // Add message info to embed
+        EmbedCreateSpec.Builder embed = EmbedCreateSpec.builder()
+                .author(authorName, null, authorAvatarUrl)
+                .timestamp(timestamp)
+                .description(content);
+
+        boolean firstImage = true;
+        List<EmbedCreateSpec> otherEmbeds = new ArrayList<>();
+        for (LinkedAttachment att : links) {
+            if (att.image()) {
+                if (firstImage) {
+                    // Include first image in embed
+                    embed.image(att.url());
+                    firstImage = false;
+                } else {
+                    // Create new embeds with following images
+                    otherEmbeds.add(EmbedCreateSpec.builder().image(att.url()).build());
+                }
+            } else {
+                // This is a file
+                otherEmbeds.add(EmbedCreateSpec.builder().title(att.filename()).url(att.url()).build());
+            }
+        }
+
+        List<EmbedCreateSpec> result = new ArrayList<>(1 + otherEmbeds.size() + embeds.size());
+        result.add(embed.build());
+        result.addAll(otherEmbeds);
+        result.addAll(embeds);
+        return result;
+    }
+}
@@ -0,0 +1,217 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.spec.EmbedCreateSpec;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Packs consecutive prepared messages so that they are posted with a single API call.
+ * <p>
+ *     Consecutive messages of a same author, posted within a time window, have their contents merged in a single
+ *     description. Other messages are packed next to each other, as separate embeds. A pack never exceeds the limits
+ *     of a message: {@value MessageLayout#MAX_EMBEDS} embeds, {@value MessageLayout#MAX_EMBEDS_LENGTH} characters
+ *     of embeds and {@value MessageLayout#MAX_DESCRIPTION_LENGTH} characters of description.
+ * </p>
+ * <p>
+ *     Messages with attachment files are never packed, uploaded files could not be told apart, they are emitted
+ *     right away rather than held back until the next message. Messages posted under
+ *     the name of their author (see {@link WebhookPool}) are only packed with messages of the same author,
+ *     their contents being merged in a single message content.
+ * </p>
+ */
+public class MessagePacker {
+    private final Duration window;
+
+    /**
+     * @param window The maximum delay between two messages of a same author for their contents to be merged.
+     */
+    public MessagePacker(Duration window) {
+        this.window = window;
+    }
+
+    /**
+     * Pack consecutive messages, preserving their order.
+     * @param messages The prepared messages.
+     * @param merged Called with each message merged into the pack of a previous one, as soon as it is merged.
+     * @return The packed messages.
+     */
+    public Flux<PreparedMessage> pack(Flux<PreparedMessage> messages, Consumer<PreparedMessage> merged) {
+        return Flux.defer(() -> {
+            Pack pack = new Pack(merged);
+            return messages.concatMapIterable(pack::push)
+                    .concatWith(Mono.fromSupplier(pack::flush))
+                    .doFinally(s -> {
+                        if (s != SignalType.ON_COMPLETE) pack.discard();
+                    });
+        });
+    }
+
+    /**
+     * @return A new counter of the posts of packed messages.
+     */
+    public Counter counter() {
+        return new Counter();
+    }
+
+    /**
+     * Counts the messages posted once packed, without building them: messages are added one at a time, in order.
+     */
+    public class Counter {
+        private final Pack pack = new Pack(m -> {});
+        private long posts;
+
+        private Counter() {}
+
+        /**
+         * Add the next message.
+         */
+        public synchronized void add(PreparedMessage m) {
+            posts += pack.push(m).size();
+        }
+
+        /**
+         * @return The number of messages posted, the pack being built included.
+         */
+        public synchronized long getPosts() {
+            return posts + (pack.isEmpty() ? 0 : 1);
+        }
+    }
+
+    /**
+     * The pack being built.
+     */
+    private class Pack {
+        private final List<PreparedMessage> messages = new ArrayList<>();
+        private final List<EmbedCreateSpec> embeds = new ArrayList<>();
+        private final Consumer<PreparedMessage> merged;
+        private StringBuilder content;
+        private int length;
+        /** Whether the last embed holds the content of the last message, more content can be appended to it. */
+        private boolean openDescription;
+
+        private Pack(Consumer<PreparedMessage> merged) {
+            this.merged = merged;
+        }
+
+        /**
+         * Add a message to the pack.
+         * @return The messages done: the previous pack if the message did not fit in it,
+         *         followed by the message itself if nothing can be packed with it.
+         */
+        private synchronized List<PreparedMessage> push(PreparedMessage m) {
+            if (!messages.isEmpty() && tryAdd(m)) {
+                merged.accept(m);
+                return List.of();
+            }
+            PreparedMessage done = flush();
+            if (!m.attachments().isEmpty()) {
+                // Nothing is packed with uploaded files, no need to wait for the next message
+                return done != null ? List.of(done, m) : List.of(m);
+            }
+            start(m);
+            return done != null ? List.of(done) : List.of();
+        }
+
+        private void start(PreparedMessage m) {
+            messages.add(m);
+            embeds.addAll(m.embeds());
+            content = m.content() != null ? new StringBuilder(m.content()) : null;
+            length = m.embeds().stream().mapToInt(MessageLayout::length).sum();
+            openDescription = m.content() == null && isDescription(m.embeds());
+        }
+
+        private boolean tryAdd(PreparedMessage m) {
+            // A reply starts a pack of its own, so that the packed message can be posted as a reply
+            if (!m.attachments().isEmpty() || m.replyTo() != null) return false;
+            PreparedMessage last = messages.get(messages.size() - 1);
+            if ((m.content() == null) != (content == null)) return false;
+            boolean sameRun = m.authorName().equals(last.authorName())
+                    && Duration.between(last.timestamp(), m.timestamp()).compareTo(window) <= 0;
+
+            int addedLength = m.embeds().stream().mapToInt(MessageLayout::length).sum();
+            if (content != null) {
+                // Posted under the name of the author, only the same author can be packed
+                if (!sameRun || !Objects.equals(m.authorAvatarUrl(), last.authorAvatarUrl())) return false;
+                String separator = content.length() > 0 && !m.content().isEmpty() ? "\n" : "";
+                if (content.length() + separator.length() + m.content().length() > MessageLayout.MAX_CONTENT_LENGTH)
+                    return false;
+                if (!fits(m.embeds().size(), addedLength)) return false;
+                content.append(separator).append(m.content());
+                embeds.addAll(m.embeds());
+                length += addedLength;
+                messages.add(m);
+                return true;
+            }
+
+            if (sameRun && openDescription && isDescription(m.embeds())) {
+                // Merge the content in the description of the previous message
+                EmbedCreateSpec previous = embeds.get(embeds.size() - 1);
+                String description = previous.descriptionOrElse("");
+                String added = m.embeds().get(0).descriptionOrElse("");
+                int mergedLength = description.length() + 1 + added.length();
+                if (mergedLength <= MessageLayout.MAX_DESCRIPTION_LENGTH
+                        && length + 1 + added.length() <= MessageLayout.MAX_EMBEDS_LENGTH) {
+                    embeds.set(embeds.size() - 1, previous.withDescription(description+"\n"+added));
+                    length += 1 + added.length();
+                    messages.add(m);
+                    return true;
+                }
+            }
+
+            // Pack the message next to the previous ones
+            if (!fits(m.embeds().size(), addedLength)) return false;
+            embeds.addAll(m.embeds());
+            length += addedLength;
+            openDescription = isDescription(m.embeds());
+            messages.add(m);
+            return true;
+        }
+
+        private boolean fits(int addedEmbeds, int addedLength) {
+            return embeds.size() + addedEmbeds <= MessageLayout.MAX_EMBEDS
+                    && length + addedLength <= MessageLayout.MAX_EMBEDS_LENGTH;
+        }
+
+        /**
+         * Whether a message is a lone signed description, without images.
+         */
+        private boolean isDescription(List<EmbedCreateSpec> embeds) {
+            return embeds.size() == 1 && embeds.get(0).author() != null && embeds.get(0).image().isAbsent();
+        }
+
+        private synchronized boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        private synchronized PreparedMessage flush() {
+            if (messages.isEmpty()) return null;
+            PreparedMessage first = messages.get(0);
+            PreparedMessage packed = first;
+            if (messages.size() > 1) {
+                List<Snowflake> packedIds = new ArrayList<>();
+                for (PreparedMessage m : messages.subList(1, messages.size())) {
+                    packedIds.addAll(m.sourceIds());
+                }
+                packed = new PreparedMessage(first.channelId(), first.id(), packedIds, first.replyTo(), first.authorName(),
+                        first.authorAvatarUrl(), first.timestamp(), content != null ? content.toString() : null,
+                        List.copyOf(embeds), first.attachments());
+            }
+            messages.clear();
+            embeds.clear();
+            return packed;
+        }
+
+        private synchronized void discard() {
+            messages.forEach(PreparedMessage::close);
+            messages.clear();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.channel.TextChannel;
+import discord4j.core.spec.MessageCreateFields;
+import discord4j.core.spec.MessageCreateSpec;
+import discord4j.discordjson.possible.Possible;
+import discord4j.rest.route.Routes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.util.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Posts prepared messages in destination channels, through the {@link WriteScheduler}.
+ * <p>
+ *     Messages are posted by the bot, or through a {@link WebhookPool} if one is given.
+ *     Replies posted by the bot refer to the copy of the message they reply to, when it was migrated;
+ *     webhooks cannot post replies.
+ * </p>
+ */
+public class MessageWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageWriter.class);
+
+    private final WriteScheduler writes;
+    private final WebhookPool webhooks;
+
+    public MessageWriter(WriteScheduler writes) {
+        this(writes, null);
+    }
+
+    /**
+     * @param writes The scheduler through which messages are posted.
+     * @param webhooks The webhooks through which messages are posted, null to post them as the bot.
+     */
+    public MessageWriter(WriteScheduler writes, WebhookPool webhooks) {
+        this.writes = writes;
+        this.webhooks = webhooks;
+    }
+
+    /**
+     * Post a prepared message in a destination channel, and record it in the journal of this destination.
+     * @param msg The prepared message.
+     * @param journal The journal of the destination guild.
+     * @param dstChan The destination channel.
+     * @return The created message.
+     */
+    public Mono<Message> post(
+            @NonNull PreparedMessage msg, @NonNull MigrationJournal journal, @NonNull TextChannel dstChan
+    ) {
+        LOGGER.info("Migrating message ("+msg.channelId().asString()+"/"+msg.id().asString()+"): "
+                +msg.authorName()+" at "+msg.timestamp()
+                +(msg.packedIds().isEmpty() ? "" : ", packed with "+msg.packedIds().size()+" following messages"));
+        return Mono.defer(() -> {
+            Snowflake replyTo = msg.replyTo() != null ? journal.getDestination(msg.replyTo()).orElse(null) : null;
+            return createMessage(dstChan, msg, replyTo);
+        }).doOnNext(createdMessage -> msg.sourceIds().forEach(id ->
+                journal.recordMessage(msg.channelId(), id, createdMessage.getId())));
+    }
+
+    /**
+     * Post a message, streaming its attachments from the cache.
+     * @param replyTo The destination message the message replies to, null if it is not a reply.
+     */
+    private Mono<Message> createMessage(
+            @NonNull TextChannel dstChan, @NonNull PreparedMessage msg, Snowflake replyTo
+    ) {
+        if (webhooks != null) return Mono.using(
+                () -> msg.attachments().stream().map(CachedAttachment::open).toList(),
+                files -> webhooks.execute(dstChan, msg, files),
+                MessageWriter::closeFiles);
+        return writes.schedule(Routes.MESSAGE_CREATE, dstChan.getId(), writes.getMetrics().timePost(Mono.using(
+                () -> msg.attachments().stream().map(CachedAttachment::open).toList(),
+                files -> dstChan.createMessage(MessageCreateSpec.builder()
+                        .content(msg.content() != null ? Possible.of(msg.content()) : Possible.absent())
+                        .embeds(msg.embeds())
+                        .messageReference(replyTo != null ? Possible.of(replyTo) : Possible.absent())
+                        .files(files)
+                        .build()),
+                MessageWriter::closeFiles)));
+    }
+
+    private static void closeFiles(List<MessageCreateFields.File> files) {
+        files.forEach(f -> {
+            try {
+                f.inputStream().close();
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to close attachment stream", ex);
+            }
+        });
+    }
+}
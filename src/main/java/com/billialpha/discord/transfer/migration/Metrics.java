@@ -0,0 +1,298 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a run, shared by every command.
+ * <p>
+ *     Metrics can be watched through JMX, under {@value #OBJECT_NAME}, or exported in the Prometheus text format
+ *     to a file rewritten periodically (to be collected by the textfile collector of the node exporter).
+ * </p>
+ */
+public class Metrics implements MetricsMXBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+    public static final String OBJECT_NAME = "com.billialpha.discord.transfer:type=Metrics";
+
+    private final LongAdder messagesFetched = new LongAdder();
+    private final LongAdder messagesPosted = new LongAdder();
+    private final LongAdder messagesFailed = new LongAdder();
+    private final LongAdder reactionsRemoved = new LongAdder();
+    private final LongAdder attachmentsDownloaded = new LongAdder();
+    private final LongAdder attachmentBytes = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder rateLimitWait = new LongAdder();
+    private final Histogram postLatency = new Histogram();
+    private final Histogram downloadLatency = new Histogram();
+    private final Map<Snowflake, ChannelGauge> inFlight = new ConcurrentHashMap<>();
+
+    public void messageFetched() {
+        messagesFetched.increment();
+    }
+
+    /**
+     * Record a message post.
+     * @param nanos The time taken by the post, in nanoseconds.
+     * @param success Whether the message was posted.
+     */
+    public void messagePosted(long nanos, boolean success) {
+        if (success) messagesPosted.increment();
+        else messagesFailed.increment();
+        postLatency.record(nanos);
+    }
+
+    /**
+     * Time a message post, recorded once it completes.
+     * <p>
+     *     The clock starts when the post is subscribed to: posts given to the {@link WriteScheduler} are only
+     *     subscribed to once dispatched, their latency does not include the wait for a rate-limit budget.
+     * </p>
+     * @param post The post request.
+     * @return The timed post.
+     */
+    public <T> Mono<T> timePost(Mono<T> post) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return post
+                    .doOnSuccess(v -> messagePosted(System.nanoTime() - start, true))
+                    .doOnError(err -> messagePosted(System.nanoTime() - start, false));
+        });
+    }
+
+    public void reactionRemoved() {
+        reactionsRemoved.increment();
+    }
+
+    /**
+     * Record an attachment download.
+     * @param nanos The time taken by the download, in nanoseconds.
+     * @param bytes The size of the attachment.
+     */
+    public void attachmentDownloaded(long nanos, long bytes) {
+        attachmentsDownloaded.increment();
+        attachmentBytes.add(bytes);
+        downloadLatency.record(nanos);
+    }
+
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    /**
+     * Record a pause waiting for a rate-limit bucket.
+     * @param nanos The pause, in nanoseconds.
+     */
+    public void rateLimitWait(long nanos) {
+        rateLimitWait.add(nanos);
+    }
+
+    /**
+     * @param channelId The ID of the source channel.
+     * @param name The name of the source channel, reported along with its ID.
+     * @return The number of prepared messages of a channel not posted yet.
+     */
+    public AtomicInteger inFlight(Snowflake channelId, String name) {
+        return inFlight.computeIfAbsent(channelId, k -> new ChannelGauge(name, new AtomicInteger())).count();
+    }
+
+    @Override
+    public long getMessagesFetched() {
+        return messagesFetched.sum();
+    }
+
+    @Override
+    public long getMessagesPosted() {
+        return messagesPosted.sum();
+    }
+
+    @Override
+    public long getMessagesFailed() {
+        return messagesFailed.sum();
+    }
+
+    @Override
+    public long getReactionsRemoved() {
+        return reactionsRemoved.sum();
+    }
+
+    @Override
+    public long getAttachmentsDownloaded() {
+        return attachmentsDownloaded.sum();
+    }
+
+    @Override
+    public long getAttachmentBytes() {
+        return attachmentBytes.sum();
+    }
+
+    @Override
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getRateLimitWaitMillis() {
+        return Duration.ofNanos(rateLimitWait.sum()).toMillis();
+    }
+
+    @Override
+    public double getPostLatencyMeanMillis() {
+        return postLatency.meanMillis();
+    }
+
+    @Override
+    public double getDownloadLatencyMeanMillis() {
+        return downloadLatency.meanMillis();
+    }
+
+    @Override
+    public Map<String, Integer> getInFlight() {
+        Map<String, Integer> result = new TreeMap<>();
+        inFlight.forEach((channelId, gauge) -> result.put(channelId.asString(), gauge.count().get()));
+        return result;
+    }
+
+    /**
+     * Register these metrics in the platform MBean server.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            LOGGER.warn("Unable to register metrics MBean", ex);
+        }
+    }
+
+    /**
+     * Periodically rewrite a file with the metrics in the Prometheus text format.
+     * @param file The file to write.
+     * @param interval The pause between two writes.
+     * @return A disposable stopping the export, after writing the file a last time.
+     */
+    public Disposable exportPeriodically(Path file, Duration interval) {
+        Disposable task = Flux.interval(interval, Schedulers.boundedElastic())
+                .subscribe(i -> export(file));
+        return () -> {
+            task.dispose();
+            export(file);
+        };
+    }
+
+    /**
+     * Write the metrics to a file, replacing it atomically.
+     */
+    public void export(Path file) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writePrometheus(writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to export metrics: "+file, ex);
+        }
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        counter(out, "messages_fetched_total", "Source messages fetched", getMessagesFetched());
+        counter(out, "messages_posted_total", "Messages posted", getMessagesPosted());
+        counter(out, "messages_failed_total", "Messages which could not be posted", getMessagesFailed());
+        counter(out, "reactions_removed_total", "Migrated reactions removed", getReactionsRemoved());
+        counter(out, "attachments_downloaded_total", "Attachments downloaded", getAttachmentsDownloaded());
+        counter(out, "attachment_bytes_total", "Bytes of attachments downloaded", getAttachmentBytes());
+        counter(out, "rate_limited_total", "Rate-limited (HTTP 429) responses", getRateLimitedCount());
+        out.write("# HELP discord_transfer_rate_limit_wait_seconds_total Time spent waiting for rate-limits\n");
+        out.write("# TYPE discord_transfer_rate_limit_wait_seconds_total counter\n");
+        out.write("discord_transfer_rate_limit_wait_seconds_total "+(rateLimitWait.sum() / 1e9)+"\n");
+        postLatency.write(out, "post_latency_seconds", "Latency of message post requests, once dispatched");
+        downloadLatency.write(out, "download_latency_seconds", "Latency of attachment downloads");
+        out.write("# HELP discord_transfer_in_flight_messages Prepared messages not posted yet\n");
+        out.write("# TYPE discord_transfer_in_flight_messages gauge\n");
+        for (Map.Entry<Snowflake, ChannelGauge> entry : new TreeMap<>(inFlight).entrySet()) {
+            out.write("discord_transfer_in_flight_messages{channel_id=\""+entry.getKey().asString()
+                    +"\",channel=\""+escape(entry.getValue().name())+"\"} "+entry.getValue().count().get()+"\n");
+        }
+    }
+
+    private static void counter(Writer out, String name, String help, long value) throws IOException {
+        out.write("# HELP discord_transfer_"+name+" "+help+"\n");
+        out.write("# TYPE discord_transfer_"+name+" counter\n");
+        out.write("discord_transfer_"+name+" "+value+"\n");
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private record ChannelGauge(String name, AtomicInteger count) {}
+
+    /**
+     * A latency histogram with fixed buckets.
+     */
+    private static class Histogram {
+        private static final double[] BOUNDS = {0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        private void record(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                if (seconds <= BOUNDS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(nanos);
+        }
+
+        private double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / 1e6 / n;
+        }
+
+        private void write(Writer out, String name, String help) throws IOException {
+            out.write("# HELP discord_transfer_"+name+" "+help+"\n");
+            out.write("# TYPE discord_transfer_"+name+" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                cumulative += buckets[i].sum();
+                out.write("discord_transfer_"+name+"_bucket{le=\""+BOUNDS[i]+"\"} "+cumulative+"\n");
+            }
+            out.write("discord_transfer_"+name+"_bucket{le=\"+Inf\"} "+count.sum()+"\n");
+            out.write("discord_transfer_"+name+"_sum "+(sum.sum() / 1e9)+"\n");
+            out.write("discord_transfer_"+name+"_count "+count.sum()+"\n");
+        }
+    }
+}
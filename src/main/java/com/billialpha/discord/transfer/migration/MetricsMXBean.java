@@ -0,0 +1,33 @@
+package com.billialpha.discord.transfer.migration;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link Metrics} of a run.
+ */
+public interface MetricsMXBean {
+    long getMessagesFetched();
+
+    long getMessagesPosted();
+
+    long getMessagesFailed();
+
+    long getReactionsRemoved();
+
+    long getAttachmentsDownloaded();
+
+    long getAttachmentBytes();
+
+    long getRateLimitedCount();
+
+    long getRateLimitWaitMillis();
+
+    double getPostLatencyMeanMillis();
+
+    double getDownloadLatencyMeanMillis();
+
+    /**
+     * @return The number of prepared messages not posted yet, by source channel ID.
+     */
+    Map<String, Integer> getInFlight();
+}
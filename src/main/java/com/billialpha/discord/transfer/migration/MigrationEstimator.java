@@ -0,0 +1,149 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.core.object.entity.Attachment;
+import discord4j.core.object.entity.Message;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Estimates the size and duration of a migration, from the source messages it would post.
+ * <p>
+ *     The duration is projected from the usual rate-limits of Discord: a channel accepts about one message per
+ *     second from a bot, or one message every {@value #WEBHOOK_INTERVAL_MS} ms from each of its webhooks, and a bot
+ *     can send at most {@value #GLOBAL_REQUESTS_PER_SECOND} requests per second overall. Channels are migrated
+ *     concurrently, the projection is the longest channel or the global limit, whichever is slower.
+ * </p>
+ */
+public class MigrationEstimator {
+    private static final long MESSAGE_INTERVAL_MS = 1000;
+    private static final long WEBHOOK_INTERVAL_MS = 400;
+    private static final long REACTION_INTERVAL_MS = 250;
+    private static final long GLOBAL_REQUESTS_PER_SECOND = 50;
+
+    private final Duration delay;
+    private final MessagePacker packer;
+    private final int webhooks;
+    private final boolean reUploadFiles;
+    private final boolean markMigrated;
+    private final int destinations;
+
+    /**
+     * @param delay The minimum pause between two messages posted in a channel.
+     * @param packer The packer of the messages, null if messages are not packed.
+     * @param webhooks The number of webhooks of each channel, zero if messages are posted by the bot.
+     * @param reUploadFiles Whether attachments are re-uploaded.
+     * @param markMigrated Whether migrated source messages are marked with a reaction.
+     * @param destinations The number of destination guilds.
+     */
+    public MigrationEstimator(Duration delay, MessagePacker packer, int webhooks, boolean reUploadFiles,
+                              boolean markMigrated, int destinations) {
+        this.delay = delay;
+        this.packer = packer;
+        this.webhooks = webhooks;
+        this.reUploadFiles = reUploadFiles;
+        this.markMigrated = markMigrated;
+        this.destinations = destinations;
+    }
+
+    /**
+     * Start the estimate of a channel.
+     * @param name The channel name.
+     * @return The estimate, messages should be added in chronological order.
+     */
+    public ChannelEstimate channel(String name) {
+        return new ChannelEstimate(name);
+    }
+
+    /**
+     * The projected duration of a channel migration.
+     */
+    public Duration duration(ChannelEstimate channel) {
+        long postInterval = webhooks > 0 ? Math.max(1, WEBHOOK_INTERVAL_MS / webhooks) : MESSAGE_INTERVAL_MS;
+        long posting = channel.getPosts() * Math.max(postInterval, delay.toMillis());
+        long reacting = markMigrated ? channel.messages * REACTION_INTERVAL_MS : 0;
+        return Duration.ofMillis(Math.max(posting, reacting));
+    }
+
+    /**
+     * The projected duration of the whole migration, channels being migrated concurrently.
+     */
+    public Duration duration(Collection<ChannelEstimate> channels) {
+        Duration longest = channels.stream().map(this::duration).max(Duration::compareTo).orElse(Duration.ZERO);
+        long requests = channels.stream().mapToLong(this::requests).sum();
+        Duration global = Duration.ofMillis(requests * 1000 / GLOBAL_REQUESTS_PER_SECOND);
+        return longest.compareTo(global) >= 0 ? longest : global;
+    }
+
+    private long requests(ChannelEstimate channel) {
+        return channel.getPosts() * destinations + (markMigrated ? channel.messages : 0);
+    }
+
+    /**
+     * Placeholders of the files a message would upload, to lay it out without downloading them.
+     * <p>
+     *     They only tell the {@link MessagePacker} that the message uploads files, they cannot be opened nor closed.
+     * </p>
+     * @return The placeholders, empty if files are linked rather than re-uploaded.
+     */
+    public List<CachedAttachment> placeholders(Message msg) {
+        if (!reUploadFiles) return List.of();
+        return msg.getAttachments().stream()
+                .map(att -> new CachedAttachment(null, att.getId(), att.getFilename(), null, null, null, 0))
+                .toList();
+    }
+
+    /**
+     * The messages, attachments and posts of a channel.
+     */
+    public class ChannelEstimate {
+        private final String name;
+        private final MessagePacker.Counter packs;
+        private long messages;
+        private long attachments;
+        private long bytes;
+        private long posts;
+
+        private ChannelEstimate(String name) {
+            this.name = name;
+            this.packs = packer != null ? packer.counter() : null;
+        }
+
+        /**
+         * Add a message which would be migrated.
+         * @param msg The source message.
+         * @param prepared The message as it would be posted, see {@link #placeholders(Message)} for its files.
+         */
+        public synchronized void add(Message msg, PreparedMessage prepared) {
+            messages++;
+            attachments += msg.getAttachments().size();
+            for (Attachment att : msg.getAttachments()) bytes += att.getSize();
+            if (packs != null) packs.add(prepared);
+            else posts++;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getAttachments() {
+            return attachments;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The number of messages posted in each destination.
+         */
+        public synchronized long getPosts() {
+            return packs != null ? packs.getPosts() : posts;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * An append-only on-disk log of migration progress.
+ * <p>
+ *     Each line of the journal either maps a source message to its copy in the destination guild
+ *     ({@code m <channel> <source> <destination>}), moves forward the high-watermark of a source channel
+ *     ({@code w <channel> <message>}) or maps a source thread to the thread created for it
+ *     ({@code c <source> <destination>}). A line is written to the file as soon as it is recorded, so a crashed
+ *     process loses at most the lines being written at that time. The file is only synced to the disk by watermark
+ *     and thread records, and on close: a system crash may also lose the message mappings recorded since, whose
+ *     messages are then migrated again. A truncated trailing line is dropped on load.
+ * </p>
+ * <p>
+ *     Message mappings are indexed in a {@link MessageIndex}, which spills next to the journal file once it
+ *     outgrows {@value #INDEX_HEAP_CAPACITY} slots on the heap.
+ * </p>
+ */
+public class MigrationJournal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationJournal.class);
+    /** The number of slots of the message index kept on the heap, 16 MB. */
+    private static final int INDEX_HEAP_CAPACITY = 1 << 20;
+
+    private final Path path;
+    /** The journal file, null if read-only. */
+    private final FileChannel file;
+    private final MessageIndex messages;
+    private final Map<Snowflake, Snowflake> watermarks = new HashMap<>();
+    private final Map<Snowflake, Snowflake> channels = new HashMap<>();
+
+    private MigrationJournal(Path path, FileChannel file) {
+        this.path = path;
+        this.file = file;
+        this.messages = new MessageIndex(path.toAbsolutePath().getParent(), INDEX_HEAP_CAPACITY);
+    }
+
+    /**
+     * Open a journal, loading the progress already recorded in it.
+     * @param path The journal file, created if it does not exist.
+     * @return The opened journal.
+     * @throws IOException If the file cannot be read or opened for writing.
+     */
+    public static MigrationJournal open(Path path) throws IOException {
+        FileChannel file = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MigrationJournal journal = new MigrationJournal(path, file);
+        try {
+            long validLength = journal.load();
+            // Drop a partially written line, so that new records start on a line of their own
+            if (validLength < file.size()) {
+                LOGGER.warn("Dropping truncated record at the end of journal: "+path);
+                file.truncate(validLength);
+            }
+            file.position(validLength);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+        LOGGER.debug("Loaded journal "+path+": "+journal.messages.size()+" messages, "
+                +journal.watermarks.size()+" channels");
+        return journal;
+    }
+
+    /**
+     * Open a journal without writing to it: the progress already recorded is loaded if the file exists,
+     * new records are only kept in memory.
+     * @param path The journal file, left untouched.
+     * @return The opened journal.
+     * @throws IOException If the file cannot be read.
+     */
+    public static MigrationJournal openReadOnly(Path path) throws IOException {
+        MigrationJournal journal = new MigrationJournal(path, null);
+        if (Files.exists(path)) journal.load();
+        return journal;
+    }
+
+    private long load() throws IOException {
+        long validLength = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                validLength += line.length() + 1;
+                parseRecord(line.toString());
+                line.setLength(0);
+            }
+        }
+        return validLength;
+    }
+
+    private void parseRecord(String line) {
+        if (line.isBlank()) return;
+        String[] parts = line.split(" ");
+        try {
+            switch (parts[0]) {
+                case "m" -> messages.put(Snowflake.asLong(parts[2]), Snowflake.asLong(parts[3]));
+                case "w" -> watermarks.merge(Snowflake.of(parts[1]), Snowflake.of(parts[2]),
+                        (a, b) -> a.compareTo(b) >= 0 ? a : b);
+                case "c" -> channels.put(Snowflake.of(parts[1]), Snowflake.of(parts[2]));
+                default -> LOGGER.warn("Ignoring unknown journal record: "+line);
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Ignoring invalid journal record: "+line);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public synchronized boolean isMigrated(Snowflake srcMessage) {
+        return messages.contains(srcMessage.asLong());
+    }
+
+    public synchronized Optional<Snowflake> getDestination(Snowflake srcMessage) {
+        long dstMessage = messages.get(srcMessage.asLong());
+        return dstMessage != 0 ? Optional.of(Snowflake.of(dstMessage)) : Optional.empty();
+    }
+
+    /**
+     * The high-watermark of a channel.
+     * <p>
+     *     All messages of the channel up to (and including) the watermark have been migrated,
+     *     a resumed migration can start right after it.
+     * </p>
+     * @param srcChannel The source channel ID.
+     * @return The ID of the last migrated message, or empty if the channel was never fully migrated.
+     */
+    public synchronized Optional<Snowflake> getWatermark(Snowflake srcChannel) {
+        return Optional.ofNullable(watermarks.get(srcChannel));
+    }
+
+    /**
+     * @param srcChannel The source channel ID.
+     * @return The destination channel created for a source channel by a previous run, if recorded.
+     */
+    public synchronized Optional<Snowflake> getChannel(Snowflake srcChannel) {
+        return Optional.ofNullable(channels.get(srcChannel));
+    }
+
+    public synchronized void recordChannel(Snowflake srcChannel, Snowflake dstChannel) {
+        channels.put(srcChannel, dstChannel);
+        append("c "+srcChannel.asString()+" "+dstChannel.asString());
+        // A thread created again would be a duplicate
+        sync();
+    }
+
+    public synchronized void recordMessage(Snowflake srcChannel, Snowflake srcMessage, Snowflake dstMessage) {
+        messages.put(srcMessage.asLong(), dstMessage.asLong());
+        append("m "+srcChannel.asString()+" "+srcMessage.asString()+" "+dstMessage.asString());
+    }
+
+    public synchronized void recordWatermark(Snowflake srcChannel, Snowflake message) {
+        Snowflake current = watermarks.get(srcChannel);
+        if (current != null && current.compareTo(message) >= 0) return; // Never move backwards
+        watermarks.put(srcChannel, message);
+        append("w "+srcChannel.asString()+" "+message.asString());
+        sync();
+    }
+
+    private void append(String record) {
+        if (file == null) return; // Read-only
+        ByteBuffer buffer = ByteBuffer.wrap((record+"\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            while (buffer.hasRemaining()) file.write(buffer);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Unable to write to journal: "+path, ex);
+        }
+    }
+
+    /**
+     * Sync the file to the disk, along with every record written before.
+     */
+    private void sync() {
+        if (file == null) return; // Read-only
+        try {
+            file.force(false);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Unable to sync journal: "+path, ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (file != null) {
+            if (!file.isOpen()) return;
+            file.force(false);
+            file.close();
+        }
+        messages.close();
+    }
+}
@@ -0,0 +1,49 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.spec.EmbedCreateSpec;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A source message converted for the destination guild, ready to be posted.
+ * <p>
+ *     Its attachments are held in the cache until the prepared message is closed.
+ *     The content is null when it is posted as part of the embeds.
+ *     Several consecutive source messages may be packed in a single prepared message, the first one gives its ID to
+ *     the prepared message, the following ones are listed in {@code packedIds}.
+ *     A reply holds the ID of the source message it replies to in {@code replyTo}, null for other messages,
+ *     it is posted as a reply to the copy of that message.
+ * </p>
+ */
+public record PreparedMessage(
+        Snowflake channelId,
+        Snowflake id,
+        List<Snowflake> packedIds,
+        Snowflake replyTo,
+        String authorName,
+        String authorAvatarUrl,
+        Instant timestamp,
+        String content,
+        List<EmbedCreateSpec> embeds,
+        List<CachedAttachment> attachments
+) implements AutoCloseable {
+
+    /**
+     * @return The IDs of all the source messages of this prepared message.
+     */
+    public List<Snowflake> sourceIds() {
+        if (packedIds.isEmpty()) return List.of(id);
+        List<Snowflake> ids = new ArrayList<>(1 + packedIds.size());
+        ids.add(id);
+        ids.addAll(packedIds);
+        return ids;
+    }
+
+    @Override
+    public void close() {
+        AttachmentDownloader.release(attachments);
+    }
+}
@@ -0,0 +1,251 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.object.entity.Guild;
+import discord4j.core.object.entity.channel.CategorizableChannel;
+import discord4j.core.object.entity.channel.Category;
+import discord4j.core.object.entity.channel.Channel;
+import discord4j.core.object.entity.channel.GuildChannel;
+import discord4j.core.object.entity.channel.TextChannel;
+import discord4j.core.object.entity.channel.TopLevelGuildChannel;
+import discord4j.core.object.entity.channel.VoiceChannel;
+import discord4j.core.spec.CategoryCreateSpec;
+import discord4j.core.spec.TextChannelCreateSpec;
+import discord4j.core.spec.VoiceChannelCreateSpec;
+import discord4j.discordjson.json.ImmutablePositionModifyRequest;
+import discord4j.discordjson.json.PositionModifyRequest;
+import discord4j.discordjson.possible.Possible;
+import discord4j.rest.route.Routes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Plans the creation of the source guild structure (categories, text and voice channels) in the destination guild.
+ * <p>
+ *     Both guild trees are listed once, then channels are matched by category name, channel name and type.
+ *     Missing channels are created concurrently, each of them only once even if requested by several channels
+ *     (for instance a category shared by many text channels). Once every channel exists, the positions of the
+ *     created channels are set in a single bulk update.
+ * </p>
+ */
+public class StructurePlanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StructurePlanner.class);
+
+    /**
+     * Identifies a channel across guilds.
+     * @param category The name of the parent category, empty for categories and top-level channels.
+     * @param name The channel name.
+     * @param type The channel type.
+     */
+    public record ChannelKey(String category, String name, Channel.Type type) {}
+
+    private final Guild destGuild;
+    private final WriteScheduler writes;
+    private final Map<Snowflake, GuildChannel> srcChannels = new HashMap<>();
+    private final Map<ChannelKey, GuildChannel> destChannels = new HashMap<>();
+    private final Map<ChannelKey, Mono<GuildChannel>> creations = new ConcurrentHashMap<>();
+    private final Map<Snowflake, GuildChannel> created = new ConcurrentHashMap<>();
+    private final Map<Snowflake, GuildChannel> channelMap = new ConcurrentHashMap<>();
+
+    private StructurePlanner(
+            Guild destGuild, WriteScheduler writes, List<GuildChannel> srcChannels, List<GuildChannel> destChannels
+    ) {
+        this.destGuild = destGuild;
+        this.writes = writes;
+        for (GuildChannel c : srcChannels) this.srcChannels.put(c.getId(), c);
+        Map<Snowflake, GuildChannel> destById = new HashMap<>();
+        for (GuildChannel c : destChannels) destById.put(c.getId(), c);
+        for (GuildChannel c : destChannels) this.destChannels.putIfAbsent(keyOf(c, destById), c);
+    }
+
+    /**
+     * Take a snapshot of the channels of both guilds.
+     * @param srcGuild The source guild.
+     * @param destGuild The destination guild.
+     * @param writes The scheduler through which channels are created.
+     * @return A planner for these guilds.
+     */
+    public static Mono<StructurePlanner> snapshot(Guild srcGuild, Guild destGuild, WriteScheduler writes) {
+        return Mono.zip(srcGuild.getChannels().collectList(), destGuild.getChannels().collectList())
+                .map(t -> new StructurePlanner(destGuild, writes, t.getT1(), t.getT2()));
+    }
+
+    /**
+     * Take a snapshot of the channels of the destination guild only, when the source guild is not available.
+     * @param destGuild The destination guild.
+     * @param writes The scheduler through which channels are created.
+     * @return A planner for this guild, channels are resolved by name.
+     */
+    public static Mono<StructurePlanner> snapshot(Guild destGuild, WriteScheduler writes) {
+        return destGuild.getChannels().collectList()
+                .map(channels -> new StructurePlanner(destGuild, writes, List.of(), channels));
+    }
+
+    /**
+     * Make sure a text channel exists in the destination guild, by name, creating it with its category if missing.
+     * @param category The name of the parent category, null for a top-level channel.
+     * @param name The channel name.
+     * @param topic The topic of the channel, if it has to be created.
+     * @return The destination channel.
+     */
+    public Mono<TextChannel> resolveTextChannel(String category, String name, String topic) {
+        ChannelKey key = new ChannelKey(category != null ? category : "", name, Channel.Type.GUILD_TEXT);
+        return resolve(key, () -> Mono.justOrEmpty(category)
+                        .flatMap(catName -> resolve(new ChannelKey("", catName, Channel.Type.GUILD_CATEGORY),
+                                () -> {
+                                    LOGGER.info("Creating category: "+catName);
+                                    return writes.schedule(Routes.GUILD_CHANNEL_CREATE, destGuild.getId(),
+                                            destGuild.createCategory(CategoryCreateSpec.builder()
+                                                    .name(catName)
+                                                    .build()));
+                                }))
+                        .map(dstCat -> Possible.of(dstCat.getId()))
+                        .defaultIfEmpty(Possible.absent())
+                        .flatMap(parentId -> {
+                            LOGGER.info("Creating text channel: "+name);
+                            return writes.schedule(Routes.GUILD_CHANNEL_CREATE, destGuild.getId(),
+                                    destGuild.createTextChannel(TextChannelCreateSpec.builder()
+                                            .name(name)
+                                            .topic(topic != null ? Possible.of(topic) : Possible.absent())
+                                            .parentId(parentId)
+                                            .build()));
+                        }))
+                .ofType(TextChannel.class);
+    }
+
+    private Mono<GuildChannel> resolve(ChannelKey key, Supplier<Mono<? extends GuildChannel>> creation) {
+        GuildChannel existing = destChannels.get(key);
+        if (existing != null) return Mono.just(existing);
+        // Deferred, the parent category must not be resolved while updating the creations map
+        return creations.computeIfAbsent(key, k -> Mono.defer(creation).cast(GuildChannel.class).cache());
+    }
+
+    /**
+     * The channels of a source category, from the snapshot.
+     * @param srcCat The source category.
+     * @return The channels whose parent is this category.
+     */
+    public List<GuildChannel> getSourceChildren(Category srcCat) {
+        return srcChannels.values().stream()
+                .filter(c -> c instanceof CategorizableChannel cc && cc.getCategoryId().equals(Optional.of(srcCat.getId())))
+                .toList();
+    }
+
+    /**
+     * Make sure source channels exist in the destination guild, creating the missing ones with their category.
+     * @param channels The source channels (categories, text or voice channels).
+     * @return The map of source channel IDs to destination channels, including the categories.
+     */
+    public Mono<Map<Snowflake, GuildChannel>> apply(Collection<? extends GuildChannel> channels) {
+        long missing = channels.stream().map(c -> keyOf(c, srcChannels)).distinct()
+                .filter(k -> !destChannels.containsKey(k))
+                .count();
+        LOGGER.info("Destination guild structure: "+(channels.size() - missing)+" existing channels, "
+                +missing+" to create");
+        return Flux.fromIterable(channels)
+                .flatMap(this::resolve)
+                .then(Mono.defer(this::updatePositions))
+                .then(Mono.fromCallable(() -> {
+                    LOGGER.info("Created "+created.size()+" channels in destination guild");
+                    return Map.copyOf(channelMap);
+                }));
+    }
+
+    private Mono<GuildChannel> resolve(GuildChannel src) {
+        GuildChannel existing = destChannels.get(keyOf(src, srcChannels));
+        if (existing != null) {
+            channelMap.put(src.getId(), existing);
+            return Mono.just(existing);
+        }
+        // Deferred, the parent category must not be resolved while updating the creations map
+        return creations.computeIfAbsent(keyOf(src, srcChannels), key -> Mono.defer(() -> getSourceCategory(src)
+                                .map(srcCat -> resolve(srcCat).ofType(Category.class).map(Optional::of))
+                                .orElse(Mono.just(Optional.empty())))
+                        .flatMap(dstCat -> create(src, dstCat.orElse(null)))
+                        .doOnNext(dst -> created.put(src.getId(), dst))
+                        .cache())
+                .doOnNext(dst -> channelMap.put(src.getId(), dst));
+    }
+
+    private Mono<GuildChannel> create(GuildChannel src, Category dstCat) {
+        Possible<Snowflake> parentId = dstCat != null ? Possible.of(dstCat.getId()) : Possible.absent();
+        Mono<? extends GuildChannel> creation;
+        if (src instanceof Category srcCat) {
+            LOGGER.info("Creating category: "+src.getName());
+            creation = destGuild.createCategory(CategoryCreateSpec.builder()
+                    .name(src.getName())
+                    .position(srcCat.getRawPosition())
+                    .build());
+        } else if (src instanceof TextChannel srcText) {
+            LOGGER.info("Creating text channel: "+src.getName());
+            creation = destGuild.createTextChannel(TextChannelCreateSpec.builder()
+                    .name(src.getName())
+                    .topic(srcText.getTopic().map(Possible::of).orElse(Possible.absent()))
+                    .nsfw(srcText.isNsfw())
+                    .parentId(parentId)
+                    .position(srcText.getRawPosition())
+                    .build());
+        } else if (src instanceof VoiceChannel srcVoice) {
+            LOGGER.info("Creating voice channel: "+src.getName());
+            creation = destGuild.createVoiceChannel(VoiceChannelCreateSpec.builder()
+                    .name(src.getName())
+                    .parentId(parentId)
+                    .position(srcVoice.getRawPosition())
+                    .build());
+        } else {
+            return Mono.error(new IllegalArgumentException("Unsupported channel type: "+src.getType()));
+        }
+        return writes.schedule(Routes.GUILD_CHANNEL_CREATE, destGuild.getId(), creation.cast(GuildChannel.class));
+    }
+
+    /**
+     * Concurrent creations do not preserve the order of channels, set the positions of every created channel at once.
+     */
+    private Mono<Void> updatePositions() {
+        List<PositionModifyRequest> requests = new ArrayList<>();
+        created.forEach((srcId, dst) -> {
+            // Only top-level channels (categories, text and voice channels) are created
+            if (!(srcChannels.get(srcId) instanceof TopLevelGuildChannel src)) return;
+            ImmutablePositionModifyRequest.Builder request = PositionModifyRequest.builder()
+                    .id(dst.getId().asString())
+                    .position(src.getRawPosition());
+            getSourceCategory(src)
+                    .map(srcCat -> channelMap.get(srcCat.getId()))
+                    .ifPresent(dstCat -> request.parentId(Possible.of(Optional.of(dstCat.getId().asString()))));
+            requests.add(request.build());
+        });
+        if (requests.isEmpty()) return Mono.empty();
+        LOGGER.debug("Updating position of "+requests.size()+" channels");
+        return writes.schedule(Routes.GUILD_CHANNEL_POSITIONS_MODIFY, destGuild.getId(),
+                destGuild.getClient().getRestClient().getGuildService()
+                        .modifyGuildChannelPositions(destGuild.getId().asLong(),
+                                requests.toArray(PositionModifyRequest[]::new))
+                        .then());
+    }
+
+    private Optional<Category> getSourceCategory(GuildChannel src) {
+        if (!(src instanceof CategorizableChannel c)) return Optional.empty();
+        return c.getCategoryId().map(srcChannels::get)
+                .filter(Category.class::isInstance)
+                .map(Category.class::cast);
+    }
+
+    private static ChannelKey keyOf(GuildChannel chan, Map<Snowflake, GuildChannel> guildChannels) {
+        String category = "";
+        if (chan instanceof CategorizableChannel c) {
+            category = c.getCategoryId().map(guildChannels::get).map(GuildChannel::getName).orElse("");
+        }
+        return new ChannelKey(category, chan.getName(), chan.getType());
+    }
+}
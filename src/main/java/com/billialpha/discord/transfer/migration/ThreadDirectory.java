@@ -0,0 +1,231 @@
+package com.billialpha.discord.transfer.migration;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.object.entity.channel.Channel;
+import discord4j.core.object.entity.channel.TextChannel;
+import discord4j.core.spec.EmbedCreateSpec;
+import discord4j.discordjson.json.ChannelCreateRequest;
+import discord4j.discordjson.json.ChannelData;
+import discord4j.discordjson.json.ImmutableChannelCreateRequest;
+import discord4j.discordjson.possible.Possible;
+import discord4j.rest.request.DiscordWebRequest;
+import discord4j.rest.route.Route;
+import discord4j.rest.route.Routes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Lists the threads of source channels and creates their copies, through thread routes Discord4J does not cover.
+ * <p>
+ *     Discord4J has no thread nor forum channel entities: threads are handled as {@link TextChannel}s built from their
+ *     data, since messages are read from and posted to a thread through the routes of text channels.
+ *     Forum channels are handled as raw {@link ChannelData}.
+ * </p>
+ * <p>
+ *     Active threads are listed once for the whole guild, archived threads are paged for each parent channel,
+ *     the parents being paged concurrently.
+ * </p>
+ */
+public class ThreadDirectory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThreadDirectory.class);
+
+    public static final int GUILD_FORUM = 15;
+    public static final int PUBLIC_THREAD = 11;
+    private static final Route GUILD_ACTIVE_THREADS = Route.get("/guilds/{guild.id}/threads/active");
+    private static final Route PUBLIC_ARCHIVED_THREADS = Route.get("/channels/{channel.id}/threads/archived/public");
+    private static final Route THREAD_CREATE = Route.post("/channels/{channel.id}/threads");
+    private static final int ARCHIVED_PAGE_SIZE = 100;
+    /** Auto-archive created threads after a week of inactivity, the longest duration. */
+    private static final int AUTO_ARCHIVE_MINUTES = 10080;
+
+    private final GatewayDiscordClient client;
+    private final WriteScheduler writes;
+    private final ObjectMapper mapper;
+
+    /**
+     * @param client The client through which threads are listed.
+     * @param writes The scheduler through which threads and forums are created.
+     */
+    public ThreadDirectory(GatewayDiscordClient client, WriteScheduler writes) {
+        this.client = client;
+        this.writes = writes;
+        this.mapper = client.getRestClient().getRestResources().getJacksonResources().getObjectMapper();
+    }
+
+    /**
+     * Whether a channel is a thread, built by this directory.
+     * <p>
+     *     Discord4J does not know the thread channel types, threads are the only text channels of unknown type.
+     * </p>
+     */
+    public static boolean isThread(TextChannel channel) {
+        return channel.getType() == Channel.Type.UNKNOWN;
+    }
+
+    /**
+     * @return The parent channel of a thread.
+     */
+    public static Snowflake getParentId(TextChannel thread) {
+        // The parent of a thread is where the parent category of a channel is
+        return thread.getCategoryId()
+                .orElseThrow(() -> new IllegalArgumentException("Thread without parent: "+thread.getId().asString()));
+    }
+
+    /**
+     * List the forum channels of a guild.
+     */
+    public Flux<ChannelData> getForumChannels(Snowflake guildId) {
+        return client.getRestClient().getGuildService().getGuildChannels(guildId.asLong())
+                .filter(c -> c.type() == GUILD_FORUM);
+    }
+
+    /**
+     * List the public threads of channels, active and archived.
+     * @param guildId The guild of the channels.
+     * @param parents The channels (text or forum channels) whose threads are listed.
+     * @param concurrency The number of parents whose archived threads are paged at the same time.
+     * @return The threads, oldest first within each parent.
+     */
+    public Flux<TextChannel> getThreads(Snowflake guildId, Collection<Snowflake> parents, int concurrency) {
+        Set<Snowflake> parentIds = Set.copyOf(parents);
+        Flux<ChannelData> active = exchange(GUILD_ACTIVE_THREADS.newRequest(guildId.asLong()))
+                .flatMapIterable(body -> threads(body, parentIds));
+        Flux<ChannelData> archived = Flux.fromIterable(parentIds)
+                .flatMap(parent -> getArchivedThreads(parent)
+                        .onErrorResume(err -> {
+                            LOGGER.warn("Unable to list archived threads of channel "+parent.asString(), err);
+                            return Flux.empty();
+                        }), concurrency);
+        return Flux.merge(active, archived)
+                .distinct(ChannelData::id)
+                .collectSortedList((a, b) -> Snowflake.of(a.id()).compareTo(Snowflake.of(b.id())))
+                .flatMapIterable(threads -> threads)
+                .map(data -> new TextChannel(client, data));
+    }
+
+    /**
+     * Page the archived public threads of a channel, most recently archived first.
+     */
+    private Flux<ChannelData> getArchivedThreads(Snowflake parent) {
+        return getArchivedPage(parent, null)
+                .expand(page -> page.hasMore && page.before != null
+                        ? getArchivedPage(parent, page.before) : Mono.empty())
+                .flatMapIterable(ArchivedPage::threads);
+    }
+
+    private Mono<ArchivedPage> getArchivedPage(Snowflake parent, String before) {
+        DiscordWebRequest request = PUBLIC_ARCHIVED_THREADS.newRequest(parent.asLong())
+                .query("limit", ARCHIVED_PAGE_SIZE);
+        if (before != null) request.query("before", before);
+        return exchange(request).map(body -> {
+            List<ChannelData> threads = threads(body, Set.of(parent));
+            // The next page starts before the oldest archive timestamp of this one
+            String oldest = null;
+            for (JsonNode thread : body.path("threads")) {
+                String timestamp = thread.path("thread_metadata").path("archive_timestamp").asText(null);
+                if (timestamp != null && (oldest == null || Instant.parse(timestamp).isBefore(Instant.parse(oldest))))
+                    oldest = timestamp;
+            }
+            LOGGER.debug("Listed "+threads.size()+" archived threads of channel "+parent.asString());
+            return new ArchivedPage(threads, oldest, body.path("has_more").asBoolean(false));
+        });
+    }
+
+    private List<ChannelData> threads(JsonNode body, Set<Snowflake> parents) {
+        List<ChannelData> threads = new ArrayList<>();
+        for (JsonNode node : body.path("threads")) {
+            if (node.path("type").asInt() != PUBLIC_THREAD) continue;
+            if (!parents.contains(Snowflake.of(node.path("parent_id").asText()))) continue;
+            threads.add(mapper.convertValue(node, ChannelData.class));
+        }
+        return threads;
+    }
+
+    /**
+     * Make sure a forum channel exists in the destination guild, by name and parent category, creating it if missing.
+     * @param destGuildId The destination guild.
+     * @param srcForum The source forum channel.
+     * @param dstCategory The destination parent category, null for a top-level forum.
+     * @return The destination forum channel.
+     */
+    public Mono<ChannelData> resolveForum(Snowflake destGuildId, ChannelData srcForum, Snowflake dstCategory) {
+        String name = srcForum.name().toOptional().orElse("");
+        return getForumChannels(destGuildId)
+                .filter(c -> c.name().toOptional().orElse("").equals(name)
+                        && Objects.equals(c.parentId().toOptional().flatMap(p -> p).map(Snowflake::of).orElse(null),
+                                dstCategory))
+                .next()
+                .switchIfEmpty(Mono.defer(() -> {
+                    LOGGER.info("Creating forum channel: "+name);
+                    ImmutableChannelCreateRequest.Builder request = ChannelCreateRequest.builder()
+                            .name(name)
+                            .type(GUILD_FORUM)
+                            .topic(srcForum.topic().toOptional().flatMap(t -> t)
+                                    .map(Possible::of)
+                                    .orElse(Possible.absent()))
+                            .nsfw(srcForum.nsfw().toOptional().orElse(false));
+                    if (dstCategory != null) request.parentId(dstCategory.asString());
+                    return writes.schedule(Routes.GUILD_CHANNEL_CREATE, destGuildId,
+                            client.getRestClient().getGuildService()
+                                    .createGuildChannel(destGuildId.asLong(), request.build(), null));
+                }));
+    }
+
+    /**
+     * Create the copy of a source thread.
+     * <p>
+     *     A forum post needs a starter message, it is an embed with the name and date of the source thread,
+     *     the messages of the thread follow it.
+     * </p>
+     * @param srcThread The source thread.
+     * @param dstParent The destination parent channel.
+     * @param forum Whether the destination parent is a forum channel.
+     * @return The destination thread.
+     */
+    public Mono<TextChannel> createThread(TextChannel srcThread, Snowflake dstParent, boolean forum) {
+        LOGGER.info("Creating thread: "+srcThread.getName());
+        Map<String, Object> body = forum
+                ? Map.of("name", srcThread.getName(),
+                        "auto_archive_duration", AUTO_ARCHIVE_MINUTES,
+                        "message", Map.of("embeds", List.of(EmbedCreateSpec.builder()
+                                .title(srcThread.getName())
+                                .timestamp(srcThread.getId().getTimestamp())
+                                .build().asRequest())))
+                : Map.of("name", srcThread.getName(),
+                        "type", PUBLIC_THREAD,
+                        "auto_archive_duration", AUTO_ARCHIVE_MINUTES);
+        return writes.schedule(THREAD_CREATE, dstParent,
+                        THREAD_CREATE.newRequest(dstParent.asLong())
+                                .body(body)
+                                .exchange(client.getRestClient().getRestResources().getRouter())
+                                .bodyToMono(ChannelData.class))
+                .map(data -> new TextChannel(client, data));
+    }
+
+    /**
+     * Get a destination thread created by a previous run.
+     */
+    public Mono<TextChannel> getThread(Snowflake threadId) {
+        return client.getRestClient().getChannelService().getChannel(threadId.asLong())
+                .map(data -> new TextChannel(client, data));
+    }
+
+    private Mono<JsonNode> exchange(DiscordWebRequest request) {
+        return request.exchange(client.getRestClient().getRestResources().getRouter()).bodyToMono(JsonNode.class);
+    }
+
+    private record ArchivedPage(List<ChannelData> threads, String before, boolean hasMore) {}
+}
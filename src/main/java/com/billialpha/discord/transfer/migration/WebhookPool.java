@@ -0,0 +1,134 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.core.GatewayDiscordClient;
+import discord4j.core.object.entity.Message;
+import discord4j.core.object.entity.Webhook;
+import discord4j.core.object.entity.channel.TextChannel;
+import discord4j.core.spec.MessageCreateFields;
+import discord4j.core.spec.WebhookExecuteSpec;
+import discord4j.discordjson.json.MessageData;
+import discord4j.discordjson.json.WebhookCreateRequest;
+import discord4j.discordjson.json.WebhookExecuteRequest;
+import discord4j.discordjson.possible.Possible;
+import discord4j.rest.route.Routes;
+import discord4j.rest.service.WebhookService;
+import discord4j.rest.util.AllowedMentions;
+import discord4j.rest.util.MultipartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Posts messages through webhooks, under the name and avatar of their original author.
+ * <p>
+ *     Each destination channel gets a pool of webhooks, the ones left by a previous run are reused and missing ones
+ *     are created the first time the channel is written to. Messages are spread round-robin across the pool:
+ *     every webhook has its own rate-limit bucket, a busy channel is not limited to the budget of a single bucket.
+ *     Threads share the pool of their parent channel, messages are posted to the thread by its ID.
+ * </p>
+ */
+public class WebhookPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebhookPool.class);
+    private static final String WEBHOOK_NAME = "Migration";
+    /** Usernames containing these words are rejected by Discord. */
+    private static final Pattern FORBIDDEN_USERNAME = Pattern.compile("(?i)discord|clyde");
+    private static final int MAX_USERNAME_LENGTH = 80;
+
+    private final WriteScheduler writes;
+    private final int size;
+    private final Map<Snowflake, Mono<List<Webhook>>> pools = new ConcurrentHashMap<>();
+    private final Map<Snowflake, AtomicInteger> cursors = new ConcurrentHashMap<>();
+
+    /**
+     * @param writes The scheduler through which webhooks are created and executed.
+     * @param size The number of webhooks of each channel.
+     */
+    public WebhookPool(WriteScheduler writes, int size) {
+        this.writes = writes;
+        this.size = size;
+    }
+
+    /**
+     * Post a message with the next webhook of the channel pool.
+     * @param dstChan The destination channel.
+     * @param msg The prepared message, posted under the name and avatar of its author.
+     * @param files The attachments to upload.
+     * @return The created message.
+     */
+    public Mono<Message> execute(TextChannel dstChan, PreparedMessage msg, List<MessageCreateFields.File> files) {
+        Snowflake thread = ThreadDirectory.isThread(dstChan) ? dstChan.getId() : null;
+        Snowflake poolChannel = thread != null ? ThreadDirectory.getParentId(dstChan) : dstChan.getId();
+        return getPool(dstChan.getClient(), poolChannel).flatMap(pool -> {
+            Webhook webhook = pool.get(Math.floorMod(
+                    cursors.computeIfAbsent(poolChannel, k -> new AtomicInteger()).getAndIncrement(),
+                    pool.size()));
+            WebhookExecuteSpec spec = WebhookExecuteSpec.builder()
+                    .username(sanitizeUsername(msg.authorName()))
+                    .avatarUrl(msg.authorAvatarUrl() != null
+                            ? Possible.of(msg.authorAvatarUrl()) : Possible.absent())
+                    .content(msg.content() != null ? Possible.of(msg.content()) : Possible.absent())
+                    .embeds(msg.embeds())
+                    .files(files)
+                    .allowedMentions(AllowedMentions.suppressAll())
+                    .build();
+            return writes.schedule(Routes.WEBHOOK_EXECUTE, webhook.getId(), writes.getMetrics().timePost(
+                    thread != null ? executeInThread(webhook, thread, spec) : webhook.executeAndWait(spec)));
+        });
+    }
+
+    /**
+     * Execute a webhook in a thread, Discord4J does not pass the thread ID.
+     */
+    private static Mono<Message> executeInThread(Webhook webhook, Snowflake thread, WebhookExecuteSpec spec) {
+        MultipartRequest<WebhookExecuteRequest> request = spec.asRequest();
+        return Routes.WEBHOOK_EXECUTE.newRequest(webhook.getId().asLong(), webhook.getToken().orElseThrow())
+                .query("wait", true)
+                .query("thread_id", thread.asString())
+                .header("content-type", request.getFiles().isEmpty() ? "application/json" : "multipart/form-data")
+                .body(request.getFiles().isEmpty() ? request.getJsonPayload() : request)
+                .exchange(webhook.getClient().getRestClient().getRestResources().getRouter())
+                .bodyToMono(MessageData.class)
+                .map(data -> new Message(webhook.getClient(), data));
+    }
+
+    private Mono<List<Webhook>> getPool(GatewayDiscordClient client, Snowflake channelId) {
+        WebhookService service = client.getRestClient().getWebhookService();
+        return pools.computeIfAbsent(channelId, id -> service.getChannelWebhooks(channelId.asLong())
+                .map(data -> new Webhook(client, data))
+                .filter(w -> w.getName().map(WEBHOOK_NAME::equals).orElse(false) && w.getToken().isPresent())
+                .take(size)
+                .collectList()
+                .flatMap(existing -> Flux.range(0, size - existing.size())
+                        .concatMap(i -> writes.schedule(Routes.CHANNEL_WEBHOOK_CREATE, channelId,
+                                service.createWebhook(channelId.asLong(),
+                                        WebhookCreateRequest.builder().name(WEBHOOK_NAME).build(), null)))
+                        .map(data -> new Webhook(client, data))
+                        .collectList()
+                        .map(created -> {
+                            LOGGER.debug("Webhook pool of channel "+channelId.asString()+": "+existing.size()
+                                    +" reused, "+created.size()+" created");
+                            List<Webhook> pool = new ArrayList<>(existing);
+                            pool.addAll(created);
+                            return pool;
+                        }))
+                // Errors are not cached, the next message tries again (webhooks already created are reused)
+                .cache(pool -> Duration.ofMillis(Long.MAX_VALUE), err -> Duration.ZERO, () -> Duration.ZERO));
+    }
+
+    private static String sanitizeUsername(String username) {
+        String name = FORBIDDEN_USERNAME.matcher(username).replaceAll(m -> m.group().replace('o', '0')
+                .replace('O', '0').replace('y', 'i').replace('Y', 'I'));
+        if (name.isBlank()) name = "Unknown";
+        return name.length() > MAX_USERNAME_LENGTH ? name.substring(0, MAX_USERNAME_LENGTH) : name;
+    }
+}
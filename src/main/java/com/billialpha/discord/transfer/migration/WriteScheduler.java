@@ -0,0 +1,206 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import discord4j.rest.http.client.ClientResponse;
+import discord4j.rest.request.DiscordWebRequest;
+import discord4j.rest.response.ResponseFunction;
+import discord4j.rest.route.Route;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.http.client.HttpClient;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Dispatches writes to the Discord API as soon as their rate-limit bucket has some budget left.
+ * <p>
+ *     Every write goes through a lane, identified by its route and major parameter (the channel, guild or webhook
+ *     it targets). Writes of a lane are sent one after the other, in subscription order. Before each write the
+ *     lane waits for its bucket, as described by the {@code X-RateLimit-*} headers of the previous responses,
+ *     and for the global rate-limit if one was hit.
+ * </p>
+ * <p>
+ *     The scheduler learns about buckets by being registered as a response function of the Discord client
+ *     (see {@link #transform(DiscordWebRequest)}), and about rate-limited responses by instrumenting
+ *     its HTTP client (see {@link #instrument(HttpClient)}).
+ * </p>
+ */
+public class WriteScheduler implements ResponseFunction {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteScheduler.class);
+    private static final Pattern MAJOR_PARAMETER = Pattern.compile("/(?:channels|guilds|webhooks)/(\\d+)");
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, String> routeBuckets = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+    private volatile long globalResetAt = System.nanoTime();
+    private volatile long minInterval = 0;
+
+    public WriteScheduler() {
+        this(new Metrics());
+    }
+
+    /**
+     * @param metrics The metrics recording rate-limits and the time spent waiting for them.
+     */
+    public WriteScheduler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The metrics of this run.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set a minimum pause between two consecutive writes of a same lane.
+     * @param interval The pause, zero to dispatch as soon as there is some budget.
+     */
+    public void setMinInterval(Duration interval) {
+        this.minInterval = interval.toNanos();
+    }
+
+    /**
+     * Queue a write on the lane of its route.
+     * @param route The API route the write uses.
+     * @param majorId The major parameter of the route (channel, guild or webhook ID).
+     * @param write The write, only subscribed to once it is dispatched.
+     * @return A mono completing with the result of the write.
+     */
+    public <T> Mono<T> schedule(Route route, Snowflake majorId, Mono<T> write) {
+        String routeKey = routeKey(route);
+        String major = majorId.asString();
+        return Mono.defer(() -> {
+            Lane lane = lanes.computeIfAbsent(routeKey+":"+major, k -> new Lane());
+            Sinks.Empty<Void> done = Sinks.empty();
+            Mono<Void> previous;
+            synchronized (lane) {
+                previous = lane.tail;
+                lane.tail = done.asMono();
+            }
+            return previous
+                    .then(Mono.defer(() -> awaitBudget(lane, routeKey, major)))
+                    .then(write)
+                    .doFinally(s -> done.tryEmitEmpty());
+        });
+    }
+
+    /**
+     * @return The number of rate-limited (HTTP 429) responses received so far.
+     */
+    public long getRateLimitedCount() {
+        return metrics.getRateLimitedCount();
+    }
+
+    private Mono<Void> awaitBudget(Lane lane, String routeKey, String major) {
+        long now = System.nanoTime();
+        long wait = Math.max(0, globalResetAt - now);
+        Bucket bucket = buckets.get(bucketKey(routeKey, major));
+        if (bucket != null) wait = Math.max(wait, bucket.reserve(now));
+        synchronized (lane) {
+            wait = Math.max(wait, lane.lastDispatch + minInterval - now);
+            lane.lastDispatch = now + wait;
+        }
+        if (wait <= 0) return Mono.empty();
+        metrics.rateLimitWait(wait);
+        LOGGER.debug("Waiting "+Duration.ofNanos(wait).toMillis()+"ms for rate-limit of "+routeKey+":"+major);
+        return Mono.delay(Duration.ofNanos(wait)).then();
+    }
+
+    @Override
+    public Function<Mono<ClientResponse>, Mono<ClientResponse>> transform(DiscordWebRequest request) {
+        String routeKey = routeKey(request.getRoute());
+        Matcher matcher = MAJOR_PARAMETER.matcher(request.getCompleteUri());
+        String major = matcher.find() ? matcher.group(1) : "";
+        return mono -> mono.doOnNext(response ->
+                updateBucket(routeKey, major, response.getHttpResponse().responseHeaders()));
+    }
+
+    /**
+     * Watch every response of an HTTP client for rate-limit errors.
+     * @param client The HTTP client used by Discord4J.
+     * @return The instrumented client.
+     */
+    public HttpClient instrument(HttpClient client) {
+        return client.doOnResponse((response, connection) -> {
+            if (response.status().code() != 429) return;
+            metrics.rateLimited();
+            HttpHeaders headers = response.responseHeaders();
+            long retryAfter = parseSeconds(headers.get("Retry-After"));
+            boolean global = Boolean.parseBoolean(headers.get("X-RateLimit-Global"))
+                    || "global".equals(headers.get("X-RateLimit-Scope"));
+            LOGGER.debug("Rate-limited on "+response.method()+" "+response.path()
+                    +(global ? " (global)" : "")+", retry after "+Duration.ofNanos(retryAfter).toMillis()+"ms");
+            if (global) globalResetAt = Math.max(globalResetAt, System.nanoTime() + retryAfter);
+        });
+    }
+
+    private void updateBucket(String routeKey, String major, HttpHeaders headers) {
+        String remaining = headers.get("X-RateLimit-Remaining");
+        String resetAfter = headers.get("X-RateLimit-Reset-After");
+        if (remaining == null || resetAfter == null) return;
+        String hash = headers.get("X-RateLimit-Bucket");
+        if (hash != null) routeBuckets.put(routeKey, hash);
+        Bucket bucket = buckets.computeIfAbsent(bucketKey(routeKey, major), k -> new Bucket());
+        try {
+            bucket.update(Integer.parseInt(remaining), System.nanoTime() + parseSeconds(resetAfter));
+        } catch (NumberFormatException ex) {
+            LOGGER.debug("Invalid rate-limit headers: "+remaining+" / "+resetAfter);
+        }
+    }
+
+    private String bucketKey(String routeKey, String major) {
+        return routeBuckets.getOrDefault(routeKey, routeKey)+":"+major;
+    }
+
+    private static String routeKey(Route route) {
+        return route.getMethod().name()+" "+route.getUriTemplate();
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) return 0;
+        try {
+            return (long) (Double.parseDouble(value) * 1_000_000_000L);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static class Lane {
+        private Mono<Void> tail = Mono.empty();
+        private long lastDispatch = Long.MIN_VALUE / 2;
+    }
+
+    private static class Bucket {
+        private int remaining;
+        private long resetAt;
+
+        synchronized void update(int remaining, long resetAt) {
+            this.remaining = remaining;
+            this.resetAt = resetAt;
+        }
+
+        /**
+         * Reserve a request in this bucket.
+         * @return How long to wait before sending the request, in nanoseconds.
+         */
+        synchronized long reserve(long now) {
+            if (resetAt <= now) return 0; // Bucket was reset, budget is unknown until the next response
+            if (remaining > 0) {
+                remaining--;
+                return 0;
+            }
+            return resetAt - now;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ContentRewriterTest {
+    private static final Snowflake SRC_GUILD = Snowflake.of(1000);
+    private static final Snowflake DST_GUILD = Snowflake.of(2000);
+
+    @TempDir
+    Path dir;
+    private MigrationJournal journal;
+    private ContentRewriter rewriter;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        journal = MigrationJournal.openReadOnly(dir.resolve("test.journal"));
+        journal.recordMessage(Snowflake.of(10), Snowflake.of(500), Snowflake.of(600));
+        rewriter = new ContentRewriter(SRC_GUILD, DST_GUILD,
+                Map.of(Snowflake.of(10), Snowflake.of(20)),
+                Map.of(Snowflake.of(30), Snowflake.of(40)),
+                journal);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        journal.close();
+    }
+
+    @Test
+    void returnsSameInstanceWithoutReferences() {
+        String content = "Nothing to see <here> at https://example.com/channels/1/2";
+        assertSame(content, rewriter.rewrite(content));
+    }
+
+    @Test
+    void mapsChannelMentions() {
+        assertEquals("See <#20> and <#11>", rewriter.rewrite("See <#10> and <#11>"));
+    }
+
+    @Test
+    void mapsRoleMentionsAndRemovesUnknownOnes() {
+        assertEquals("Hi <@&40> and !", rewriter.rewrite("Hi <@&30> and <@&31>!"));
+    }
+
+    @Test
+    void ignoresMalformedMentions() {
+        String content = "<#> <#10 <#abc> <@&> <#123456789012345678901234>";
+        assertSame(content, rewriter.rewrite(content));
+    }
+
+    @Test
+    void mapsLinksToMigratedMessages() {
+        assertEquals("Look: https://discord.com/channels/2000/20/600 !",
+                rewriter.rewrite("Look: https://discord.com/channels/1000/10/500 !"));
+        assertEquals("https://ptb.discord.com/channels/2000/20",
+                rewriter.rewrite("https://ptb.discord.com/channels/1000/10"));
+    }
+
+    @Test
+    void keepsLinksWhichCannotBeMapped() {
+        // Message not migrated, channel not migrated, other guild
+        String content = "https://discord.com/channels/1000/10/501 https://discord.com/channels/1000/11/500 "
+                + "https://discord.com/channels/1001/10/500";
+        assertSame(content, rewriter.rewrite(content));
+    }
+
+    @Test
+    void keepsLinksWithoutSourceGuild() {
+        ContentRewriter noGuild = new ContentRewriter(null, DST_GUILD, Map.of(Snowflake.of(10), Snowflake.of(20)),
+                Map.of(), journal);
+        String content = "https://discord.com/channels/1000/10/500";
+        assertSame(content, noGuild.rewrite(content));
+    }
+
+    @Test
+    void keepsContentWhichNoLongerFits() {
+        ContentRewriter longIds = new ContentRewriter(SRC_GUILD, DST_GUILD,
+                Map.of(Snowflake.of(10), Snowflake.of(123456789012345678L)), Map.of(), journal);
+        String content = "<#10>" + "a".repeat(MessageLayout.MAX_CONTENT_LENGTH - 5);
+        PreparedMessage msg = message(content);
+        assertSame(msg, longIds.rewrite(msg));
+    }
+
+    @Test
+    void rewritesContentOfPreparedMessages() {
+        PreparedMessage rewritten = rewriter.rewrite(message("In <#10>"));
+        assertEquals("In <#20>", rewritten.content());
+        assertEquals(Snowflake.of(1), rewritten.id());
+    }
+
+    private static PreparedMessage message(String content) {
+        return new PreparedMessage(Snowflake.of(10), Snowflake.of(1), List.of(), null, "author", null,
+                Instant.EPOCH, content, List.of(), List.of());
+    }
+}
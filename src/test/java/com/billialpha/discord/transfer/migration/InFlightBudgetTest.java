@@ -0,0 +1,120 @@
+package com.billialpha.discord.transfer.migration;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InFlightBudgetTest {
+    @Test
+    void messagesWaitForRoom() {
+        InFlightBudget budget = new InFlightBudget(2, 1024);
+        InFlightBudget.Account account = budget.newAccount();
+        assertTrue(granted(account.reserveMessage()));
+        assertTrue(granted(account.reserveMessage()));
+        AtomicBoolean third = subscribe(account.reserveMessage());
+        assertFalse(third.get());
+        account.releaseMessages(1);
+        assertTrue(third.get());
+    }
+
+    @Test
+    void accountHoldingOneMessageIsAlwaysGrantedAnother() {
+        InFlightBudget budget = new InFlightBudget(1, 1024);
+        InFlightBudget.Account first = budget.newAccount();
+        InFlightBudget.Account second = budget.newAccount();
+        assertTrue(granted(first.reserveMessage()));
+        // The budget is full, but neither account could make progress otherwise
+        assertTrue(granted(second.reserveMessage()));
+        assertTrue(granted(first.reserveMessage()));
+        assertFalse(subscribe(first.reserveMessage()).get());
+    }
+
+    @Test
+    void closedAccountReleasesItsMessages() {
+        InFlightBudget budget = new InFlightBudget(3, 1024);
+        InFlightBudget.Account first = budget.newAccount();
+        InFlightBudget.Account second = budget.newAccount();
+        assertTrue(granted(first.reserveMessage()));
+        assertTrue(granted(first.reserveMessage()));
+        assertTrue(granted(second.reserveMessage()));
+        assertTrue(granted(second.reserveMessage()));
+        AtomicBoolean waiting = subscribe(second.reserveMessage());
+        first.close();
+        assertTrue(waiting.get());
+        // Late releases of a closed account are ignored
+        first.releaseMessages(2);
+        assertFalse(subscribe(second.reserveMessage()).get());
+    }
+
+    @Test
+    void bytesAreCappedToTheBudget() {
+        InFlightBudget budget = new InFlightBudget(10, 100);
+        assertEquals(100L, budget.reserveBytes(budget.newAccount(), 1000).block());
+        assertEquals(0L, budget.reserveBytes(budget.newAccount(), 0).block());
+    }
+
+    @Test
+    void accountHoldingNoBytesIsGrantedAtTheHead() {
+        InFlightBudget budget = new InFlightBudget(10, 100);
+        InFlightBudget.Account first = budget.newAccount();
+        InFlightBudget.Account second = budget.newAccount();
+        assertTrue(granted(budget.reserveBytes(first, 80)));
+        // Its own channel holds nothing it could release
+        assertTrue(granted(budget.reserveBytes(second, 50)));
+        assertFalse(subscribe(budget.reserveBytes(second, 50)).get());
+    }
+
+    @Test
+    void cancelledWaiterLeavesTheQueue() {
+        InFlightBudget budget = new InFlightBudget(10, 100);
+        InFlightBudget.Account first = budget.newAccount();
+        InFlightBudget.Account second = budget.newAccount();
+        assertTrue(granted(budget.reserveBytes(first, 100)));
+        assertTrue(granted(budget.reserveBytes(second, 10)));
+        List<String> grants = new ArrayList<>();
+        Disposable cancelled = budget.reserveBytes(first, 60).subscribe(v -> grants.add("cancelled"));
+        budget.reserveBytes(second, 50).subscribe(v -> grants.add("second"));
+        cancelled.dispose();
+        budget.releaseBytes(first, 100);
+        assertEquals(List.of("second"), grants);
+    }
+
+    @Test
+    void bytesAreGrantedRoundRobin() {
+        InFlightBudget budget = new InFlightBudget(10, 10);
+        InFlightBudget.Account first = budget.newAccount();
+        InFlightBudget.Account second = budget.newAccount();
+        List<String> grants = new ArrayList<>();
+        // The first channel queues several messages before the second one queues any
+        for (int i = 0; i < 4; i++) {
+            String name = "first"+i;
+            budget.reserveBytes(first, 10).subscribe(v -> grants.add(name));
+        }
+        for (int i = 0; i < 3; i++) {
+            String name = "second"+i;
+            budget.reserveBytes(second, 10).subscribe(v -> grants.add(name));
+        }
+        while (grants.size() < 7) {
+            budget.releaseBytes(grants.get(grants.size() - 1).startsWith("first") ? first : second, 10);
+        }
+        assertEquals(List.of("first0", "second0", "first1", "second1", "first2", "second2", "first3"), grants);
+    }
+
+    private static boolean granted(Mono<?> reservation) {
+        return subscribe(reservation).get();
+    }
+
+    private static AtomicBoolean subscribe(Mono<?> reservation) {
+        AtomicBoolean granted = new AtomicBoolean(false);
+        reservation.subscribe(v -> {}, err -> {}, () -> granted.set(true));
+        return granted;
+    }
+}
@@ -0,0 +1,76 @@
+package com.billialpha.discord.transfer.migration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageIndexTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void mapsKeysToValues() {
+        MessageIndex index = new MessageIndex(dir, 1 << 16);
+        index.put(1, 100);
+        index.put(2, 200);
+        index.put(1, 101);
+        assertEquals(2, index.size());
+        assertEquals(101, index.get(1));
+        assertEquals(200, index.get(2));
+        assertEquals(0, index.get(3));
+        assertTrue(index.contains(2));
+        assertFalse(index.contains(3));
+    }
+
+    @Test
+    void rejectsZeroKey() {
+        MessageIndex index = new MessageIndex(dir, 1 << 16);
+        assertThrows(IllegalArgumentException.class, () -> index.put(0, 1));
+    }
+
+    @Test
+    void keepsEntriesWhenGrowingOnTheHeap() {
+        MessageIndex index = new MessageIndex(dir, 1 << 20);
+        fill(index, 100_000);
+        assertEntries(index, 100_000);
+    }
+
+    @Test
+    void keepsEntriesOnceSpilled() throws IOException {
+        // The table outgrows the heap at its first growth
+        MessageIndex index = new MessageIndex(dir, 1024);
+        fill(index, 100_000);
+        assertEntries(index, 100_000);
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.count(), "Spill files are unlinked once mapped");
+        }
+        index.close();
+        assertEquals(0, index.size());
+        assertFalse(index.contains(snowflake(1)));
+    }
+
+    private static void fill(MessageIndex index, int count) {
+        for (int i = 1; i <= count; i++) index.put(snowflake(i), i);
+    }
+
+    private static void assertEntries(MessageIndex index, int count) {
+        assertEquals(count, index.size());
+        for (int i = 1; i <= count; i++) assertEquals(i, index.get(snowflake(i)));
+        assertFalse(index.contains(snowflake(count + 1)));
+    }
+
+    /**
+     * Snowflakes of consecutive messages, sharing their high bits.
+     */
+    private static long snowflake(int i) {
+        return (1_000_000_000L + i) << 22;
+    }
+}
@@ -0,0 +1,120 @@
+package com.billialpha.discord.transfer.migration;
+
+import discord4j.common.util.Snowflake;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MessagePackerTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+    private final MessagePacker packer = new MessagePacker(Duration.ofMinutes(5));
+
+    @Test
+    void mergesDescriptionsOfAnAuthor() {
+        List<PreparedMessage> merged = new ArrayList<>();
+        List<PreparedMessage> packed = pack(merged,
+                signed(1, "alice", 0, "hello"),
+                signed(2, "alice", 60, "world"));
+        assertEquals(1, packed.size());
+        PreparedMessage pack = packed.get(0);
+        assertEquals(Snowflake.of(1), pack.id());
+        assertEquals(List.of(Snowflake.of(2)), pack.packedIds());
+        assertEquals(1, pack.embeds().size());
+        assertEquals("hello\nworld", pack.embeds().get(0).descriptionOrElse(null));
+        assertEquals(List.of(Snowflake.of(2)), merged.stream().map(PreparedMessage::id).toList());
+    }
+
+    @Test
+    void packsOtherMessagesAsSeparateEmbeds() {
+        // Another author, then the same author after the window
+        List<PreparedMessage> packed = pack(new ArrayList<>(),
+                signed(1, "alice", 0, "hello"),
+                signed(2, "bob", 10, "hi"),
+                signed(3, "bob", 1000, "still there?"));
+        assertEquals(1, packed.size());
+        assertEquals(List.of(Snowflake.of(2), Snowflake.of(3)), packed.get(0).packedIds());
+        assertEquals(3, packed.get(0).embeds().size());
+    }
+
+    @Test
+    void neverExceedsTheEmbedLimit() {
+        PreparedMessage[] messages = new PreparedMessage[MessageLayout.MAX_EMBEDS + 1];
+        for (int i = 0; i < messages.length; i++) {
+            // A different author each time, nothing is merged
+            messages[i] = signed(i + 1, "author"+i, i, "message "+i);
+        }
+        List<PreparedMessage> packed = pack(new ArrayList<>(), messages);
+        assertEquals(2, packed.size());
+        assertEquals(MessageLayout.MAX_EMBEDS, packed.get(0).embeds().size());
+        assertEquals(Snowflake.of(MessageLayout.MAX_EMBEDS + 1), packed.get(1).id());
+    }
+
+    @Test
+    void neverPacksAttachmentsNorReplies() {
+        PreparedMessage withFile = new PreparedMessage(Snowflake.of(10), Snowflake.of(2), List.of(), null, "alice",
+                null, START, null, signed(2, "alice", 1, "file").embeds(),
+                List.of(new CachedAttachment(null, Snowflake.of(99), "file.txt", null, null, null, 0)));
+        PreparedMessage reply = new PreparedMessage(Snowflake.of(10), Snowflake.of(3), List.of(), Snowflake.of(1),
+                "alice", null, START, null, signed(3, "alice", 2, "reply").embeds(), List.of());
+        List<PreparedMessage> packed = pack(new ArrayList<>(), signed(1, "alice", 0, "hello"), withFile, reply);
+        assertEquals(List.of(Snowflake.of(1), Snowflake.of(2), Snowflake.of(3)),
+                packed.stream().map(PreparedMessage::id).toList());
+        packed.forEach(m -> assertEquals(List.of(), m.packedIds()));
+    }
+
+    @Test
+    void mergesContentsOfAnAuthorInWebhookMode() {
+        List<PreparedMessage> packed = pack(new ArrayList<>(),
+                unsigned(1, "alice", 0, "hello"),
+                unsigned(2, "alice", 10, "world"),
+                unsigned(3, "bob", 20, "hi"));
+        assertEquals(2, packed.size());
+        assertEquals("hello\nworld", packed.get(0).content());
+        assertEquals(List.of(Snowflake.of(2)), packed.get(0).packedIds());
+        assertEquals("hi", packed.get(1).content());
+        assertNull(packed.get(1).replyTo());
+    }
+
+    @Test
+    void countsPostsLikePacking() {
+        PreparedMessage[] messages = {
+                signed(1, "alice", 0, "hello"),
+                signed(2, "alice", 10, "world"),
+                unsigned(3, "bob", 20, "hi"),
+                unsigned(4, "bob", 30, "there")
+        };
+        MessagePacker.Counter counter = packer.counter();
+        for (PreparedMessage m : messages) counter.add(m);
+        assertEquals(pack(new ArrayList<>(), messages).size(), counter.getPosts());
+        assertEquals(2, counter.getPosts());
+    }
+
+    private List<PreparedMessage> pack(List<PreparedMessage> merged, PreparedMessage... messages) {
+        return packer.pack(Flux.just(messages), merged::add).collectList().block();
+    }
+
+    /**
+     * A message posted by the bot, signed in its embed.
+     */
+    private static PreparedMessage signed(long id, String author, long seconds, String content) {
+        Instant timestamp = START.plusSeconds(seconds);
+        return new PreparedMessage(Snowflake.of(10), Snowflake.of(id), List.of(), null, author, null, timestamp,
+                null, MessageLayout.build(author, null, timestamp, content, List.of(), List.of()), List.of());
+    }
+
+    /**
+     * A message posted under the name of its author.
+     */
+    private static PreparedMessage unsigned(long id, String author, long seconds, String content) {
+        return new PreparedMessage(Snowflake.of(10), Snowflake.of(id), List.of(), null, author, null,
+                START.plusSeconds(seconds), content, List.of(), List.of());
+    }
+}